@@ -8,12 +8,19 @@ package org.microg.gms.gcm;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
+import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.List;
 
 import static android.os.Build.VERSION.SDK_INT;
@@ -21,7 +28,7 @@ import static android.os.Build.VERSION.SDK_INT;
 public class GcmDatabase extends SQLiteOpenHelper {
     private static final String TAG = GcmDatabase.class.getSimpleName();
     public static final String DB_NAME = "gcmstatus";
-    private static int DB_VERSION = 1;
+    private static int DB_VERSION = 2;
     private static final String CREATE_TABLE_APPS = "CREATE TABLE apps (" +
             "package_name TEXT," +
             "last_error TEXT DEFAULT ''," +
@@ -30,6 +37,7 @@ public class GcmDatabase extends SQLiteOpenHelper {
             "total_message_bytes INTEGER," +
             "allow_register INTEGER DEFAULT 1," +
             "wake_for_delivery INTEGER DEFAULT 1," +
+            "collapsed_message_count INTEGER DEFAULT 0," +
             "PRIMARY KEY (package_name));";
     private static final String TABLE_APPS = "apps";
     private static final String FIELD_PACKAGE_NAME = "package_name";
@@ -39,6 +47,7 @@ public class GcmDatabase extends SQLiteOpenHelper {
     private static final String FIELD_TOTAL_MESSAGE_BYTES = "total_message_bytes";
     private static final String FIELD_ALLOW_REGISTER = "allow_register";
     private static final String FIELD_WAKE_FOR_DELIVERY = "wake_for_delivery";
+    private static final String FIELD_COLLAPSED_MESSAGE_COUNT = "collapsed_message_count";
 
     private static final String CREATE_TABLE_REGISTRATIONS = "CREATE TABLE registrations (" +
             "package_name TEXT," +
@@ -51,8 +60,19 @@ public class GcmDatabase extends SQLiteOpenHelper {
     private static final String FIELD_TIMESTAMP = "timestamp";
     private static final String FIELD_REGISTER_ID = "register_id";
 
+    private static final long FLUSH_DELAY = 60 * 1000;
+
     private Context context;
 
+    // Apps by package name, null values for apps known to not exist. Only valid as long as the data version is unchanged.
+    private final Map<String, App> appCache = new HashMap<>();
+    private long appCacheDataVersion = -1;
+    // Message counters not yet written to the database
+    private final Map<String, PendingMessages> pendingMessages = new HashMap<>();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable flushRunnable = this::flush;
+    private boolean flushScheduled = false;
+
     public GcmDatabase(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
         this.context = context;
@@ -69,6 +89,21 @@ public class GcmDatabase extends SQLiteOpenHelper {
         public final long totalMessageBytes;
         public final boolean allowRegister;
         public final boolean wakeForDelivery;
+        /**
+         * Number of messages replaced by a newer message with the same collapse key before delivery.
+         */
+        public final long collapsedMessageCount;
+
+        private App(App app, PendingMessages pending) {
+            packageName = app.packageName;
+            lastError = app.lastError;
+            lastMessageTimestamp = pending.lastMessageTimestamp;
+            totalMessageCount = app.totalMessageCount + pending.count;
+            totalMessageBytes = app.totalMessageBytes + pending.bytes;
+            allowRegister = app.allowRegister;
+            wakeForDelivery = app.wakeForDelivery;
+            collapsedMessageCount = app.collapsedMessageCount + pending.collapsed;
+        }
 
         private App(Cursor cursor) {
             packageName = cursor.getString(cursor.getColumnIndexOrThrow(FIELD_PACKAGE_NAME));
@@ -78,6 +113,7 @@ public class GcmDatabase extends SQLiteOpenHelper {
             totalMessageBytes = cursor.getLong(cursor.getColumnIndexOrThrow(FIELD_TOTAL_MESSAGE_BYTES));
             allowRegister = cursor.getLong(cursor.getColumnIndexOrThrow(FIELD_ALLOW_REGISTER)) == 1;
             wakeForDelivery = cursor.getLong(cursor.getColumnIndexOrThrow(FIELD_WAKE_FOR_DELIVERY)) == 1;
+            collapsedMessageCount = cursor.getLong(cursor.getColumnIndexOrThrow(FIELD_COLLAPSED_MESSAGE_COUNT));
         }
 
         public boolean hasError() {
@@ -85,6 +121,13 @@ public class GcmDatabase extends SQLiteOpenHelper {
         }
     }
 
+    private static class PendingMessages {
+        long count;
+        long bytes;
+        long collapsed;
+        long lastMessageTimestamp;
+    }
+
     public static class Registration {
         public final String packageName;
         public final String signature;
@@ -107,6 +150,7 @@ public class GcmDatabase extends SQLiteOpenHelper {
     }
 
     public synchronized List<App> getAppList() {
+        flush();
         SQLiteDatabase db = getReadableDatabase();
         Cursor cursor = db.query(TABLE_APPS, null, null, null, null, null, null);
         if (cursor != null) {
@@ -137,7 +181,7 @@ public class GcmDatabase extends SQLiteOpenHelper {
 
     public synchronized List<Registration> getRegistrationsByApp(String packageName) {
         SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.query(TABLE_REGISTRATIONS, null, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName}, null, null, null);
+        Cursor cursor = db.query(TABLE_REGISTRATIONS, null, FIELD_PACKAGE_NAME + " = ?", new String[]{packageName}, null, null, null);
         if (cursor != null) {
             List<Registration> result = new ArrayList<>();
             while (cursor.moveToNext()) {
@@ -153,75 +197,147 @@ public class GcmDatabase extends SQLiteOpenHelper {
         SQLiteDatabase db = getWritableDatabase();
         ContentValues cv = new ContentValues();
         cv.put(FIELD_ALLOW_REGISTER, allowRegister ? 1 : 0);
-        db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
+        db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " = ?", new String[]{packageName});
+        appCache.remove(packageName);
     }
 
     public synchronized void setAppWakeForDelivery(String packageName, boolean wakeForDelivery) {
         SQLiteDatabase db = getWritableDatabase();
         ContentValues cv = new ContentValues();
         cv.put(FIELD_WAKE_FOR_DELIVERY, wakeForDelivery ? 1 : 0);
-        db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
+        db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " = ?", new String[]{packageName});
+        appCache.remove(packageName);
     }
 
 
     public synchronized void removeApp(String packageName) {
         SQLiteDatabase db = getWritableDatabase();
-        db.delete(TABLE_REGISTRATIONS, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
-        db.delete(TABLE_APPS, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
+        db.delete(TABLE_REGISTRATIONS, FIELD_PACKAGE_NAME + " = ?", new String[]{packageName});
+        db.delete(TABLE_APPS, FIELD_PACKAGE_NAME + " = ?", new String[]{packageName});
+        pendingMessages.remove(packageName);
+        appCache.remove(packageName);
     }
 
     public synchronized void noteAppRegistrationError(String packageName, String error) {
         SQLiteDatabase db = getWritableDatabase();
         ContentValues cv = new ContentValues();
         cv.put(FIELD_LAST_ERROR, error);
-        db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
+        db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " = ?", new String[]{packageName});
+        appCache.remove(packageName);
     }
 
     public synchronized void noteAppKnown(String packageName, boolean allowRegister) {
         SQLiteDatabase db = getWritableDatabase();
         db.beginTransaction();
 
-        App app = getApp(db, packageName);
+        App app = queryApp(db, packageName);
         ContentValues cv = new ContentValues();
         cv.put(FIELD_ALLOW_REGISTER, allowRegister);
         if (app == null) {
             cv.put(FIELD_PACKAGE_NAME, packageName);
             db.insert(TABLE_APPS, null, cv);
         } else {
-            db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
+            db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " = ?", new String[]{packageName});
         }
 
         db.setTransactionSuccessful();
         db.endTransaction();
+        appCache.remove(packageName);
     }
 
+    /**
+     * Count a message for the given app. Counters are aggregated in memory and written to the database by {@link #flush()},
+     * which happens automatically shortly after.
+     */
     public synchronized void noteAppMessage(String packageName, int numBytes) {
-        SQLiteDatabase db = getWritableDatabase();
-        db.beginTransaction();
+        noteAppMessage(packageName, numBytes, false);
+    }
 
-        App app = getApp(db, packageName);
-        ContentValues cv = new ContentValues();
-        cv.put(FIELD_LAST_MESSAGE_TIMESTAMP, System.currentTimeMillis());
-        if (app == null) {
-            cv.put(FIELD_PACKAGE_NAME, packageName);
-            cv.put(FIELD_TOTAL_MESSAGE_COUNT, 1);
-            cv.put(FIELD_TOTAL_MESSAGE_BYTES, numBytes);
-            db.insert(TABLE_APPS, null, cv);
-        } else {
-            cv.put(FIELD_TOTAL_MESSAGE_COUNT, app.totalMessageCount + 1);
-            cv.put(FIELD_TOTAL_MESSAGE_BYTES, app.totalMessageBytes + numBytes);
-            db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
+    /**
+     * Count a message for the given app that was not delivered, because it was replaced by a newer message with the same
+     * collapse key.
+     */
+    public synchronized void noteAppMessageCollapsed(String packageName, int numBytes) {
+        noteAppMessage(packageName, numBytes, true);
+    }
+
+    private void noteAppMessage(String packageName, int numBytes, boolean collapsed) {
+        PendingMessages pending = pendingMessages.get(packageName);
+        if (pending == null) {
+            pending = new PendingMessages();
+            pendingMessages.put(packageName, pending);
+        }
+        pending.count++;
+        pending.bytes += numBytes;
+        if (collapsed) pending.collapsed++;
+        pending.lastMessageTimestamp = System.currentTimeMillis();
+        if (getApp(packageName) == null) {
+            // Create the app right away, callers expect it to exist afterwards
+            flush();
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            handler.postDelayed(flushRunnable, FLUSH_DELAY);
         }
+    }
 
-        db.setTransactionSuccessful();
-        db.endTransaction();
+    /**
+     * Write all pending message counters to the database.
+     */
+    public synchronized void flush() {
+        handler.removeCallbacks(flushRunnable);
+        flushScheduled = false;
+        if (pendingMessages.isEmpty()) return;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_APPS + " SET " +
+                        FIELD_TOTAL_MESSAGE_COUNT + " = IFNULL(" + FIELD_TOTAL_MESSAGE_COUNT + ", 0) + ?, " +
+                        FIELD_TOTAL_MESSAGE_BYTES + " = IFNULL(" + FIELD_TOTAL_MESSAGE_BYTES + ", 0) + ?, " +
+                        FIELD_COLLAPSED_MESSAGE_COUNT + " = IFNULL(" + FIELD_COLLAPSED_MESSAGE_COUNT + ", 0) + ?, " +
+                        FIELD_LAST_MESSAGE_TIMESTAMP + " = ? WHERE " + FIELD_PACKAGE_NAME + " = ?");
+                for (Map.Entry<String, PendingMessages> entry : pendingMessages.entrySet()) {
+                    PendingMessages pending = entry.getValue();
+                    update.bindLong(1, pending.count);
+                    update.bindLong(2, pending.bytes);
+                    update.bindLong(3, pending.collapsed);
+                    update.bindLong(4, pending.lastMessageTimestamp);
+                    update.bindString(5, entry.getKey());
+                    if (update.executeUpdateDelete() == 0) {
+                        ContentValues cv = new ContentValues();
+                        cv.put(FIELD_PACKAGE_NAME, entry.getKey());
+                        cv.put(FIELD_TOTAL_MESSAGE_COUNT, pending.count);
+                        cv.put(FIELD_TOTAL_MESSAGE_BYTES, pending.bytes);
+                        cv.put(FIELD_COLLAPSED_MESSAGE_COUNT, pending.collapsed);
+                        cv.put(FIELD_LAST_MESSAGE_TIMESTAMP, pending.lastMessageTimestamp);
+                        db.insert(TABLE_APPS, null, cv);
+                    }
+                    appCache.remove(entry.getKey());
+                }
+                update.close();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            pendingMessages.clear();
+        } catch (Exception e) {
+            Log.w(TAG, "Failed writing message counters", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+        appCache.clear();
+        appCacheDataVersion = -1;
+        super.close();
     }
 
     public synchronized void noteAppRegistered(String packageName, String signature, String registrationId) {
         SQLiteDatabase db = getWritableDatabase();
         db.beginTransaction();
 
-        App app = getApp(db, packageName);
+        App app = queryApp(db, packageName);
         if (app == null) {
             ContentValues cv = new ContentValues();
             cv.put(FIELD_PACKAGE_NAME, packageName);
@@ -229,7 +345,7 @@ public class GcmDatabase extends SQLiteOpenHelper {
         } else {
             ContentValues cv = new ContentValues();
             cv.put(FIELD_LAST_ERROR, "");
-            db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
+            db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " = ?", new String[]{packageName});
         }
 
         ContentValues cv = new ContentValues();
@@ -241,19 +357,49 @@ public class GcmDatabase extends SQLiteOpenHelper {
 
         db.setTransactionSuccessful();
         db.endTransaction();
+        appCache.remove(packageName);
     }
 
     public synchronized void noteAppUnregistered(String packageName, String signature) {
         SQLiteDatabase db = getWritableDatabase();
-        db.delete(TABLE_REGISTRATIONS, FIELD_PACKAGE_NAME + " LIKE ? AND " + FIELD_SIGNATURE + " LIKE ?", new String[]{packageName, signature});
+        db.delete(TABLE_REGISTRATIONS, FIELD_PACKAGE_NAME + " = ? AND " + FIELD_SIGNATURE + " = ?", new String[]{packageName, signature});
     }
 
-    public App getApp(String packageName) {
-        return getApp(getReadableDatabase(), packageName);
+    /**
+     * Get the app, including message counters not yet written to the database. Apps are cached in memory until the
+     * database is modified by another connection, e.g. from the settings UI.
+     */
+    public synchronized App getApp(String packageName) {
+        SQLiteDatabase db = getReadableDatabase();
+        long dataVersion = getDataVersion(db);
+        if (dataVersion < 0 || dataVersion != appCacheDataVersion) {
+            appCache.clear();
+            appCacheDataVersion = dataVersion;
+        }
+        App app;
+        if (appCache.containsKey(packageName)) {
+            app = appCache.get(packageName);
+        } else {
+            app = queryApp(db, packageName);
+            if (dataVersion >= 0) appCache.put(packageName, app);
+        }
+        PendingMessages pending = pendingMessages.get(packageName);
+        if (app != null && pending != null) return new App(app, pending);
+        return app;
     }
 
-    private App getApp(SQLiteDatabase db, String packageName) {
-        Cursor cursor = db.query(TABLE_APPS, null, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName}, null, null, null, "1");
+    private static long getDataVersion(SQLiteDatabase db) {
+        try {
+            // Changes whenever another connection commits to the database
+            return DatabaseUtils.longForQuery(db, "PRAGMA data_version;", null);
+        } catch (Exception e) {
+            // Not supported by SQLite on this device
+            return -1;
+        }
+    }
+
+    private App queryApp(SQLiteDatabase db, String packageName) {
+        Cursor cursor = db.query(TABLE_APPS, null, FIELD_PACKAGE_NAME + " = ?", new String[]{packageName}, null, null, null, "1");
         if (cursor != null) {
             try {
                 if (cursor.moveToNext()) {
@@ -266,12 +412,12 @@ public class GcmDatabase extends SQLiteOpenHelper {
         return null;
     }
 
-    public Registration getRegistration(String packageName, String signature) {
+    public synchronized Registration getRegistration(String packageName, String signature) {
         return getRegistration(getReadableDatabase(), packageName, signature);
     }
 
     private Registration getRegistration(SQLiteDatabase db, String packageName, String signature) {
-        Cursor cursor = db.query(TABLE_REGISTRATIONS, null, FIELD_PACKAGE_NAME + " LIKE ? AND " + FIELD_SIGNATURE + " LIKE ?", new String[]{packageName, signature}, null, null, null, "1");
+        Cursor cursor = db.query(TABLE_REGISTRATIONS, null, FIELD_PACKAGE_NAME + " = ? AND " + FIELD_SIGNATURE + " = ?", new String[]{packageName, signature}, null, null, null, "1");
         if (cursor != null) {
             try {
                 if (cursor.moveToNext()) {
@@ -311,7 +457,26 @@ public class GcmDatabase extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        throw new IllegalStateException("Upgrades not supported");
+        // The column is kept on downgrade, so it may exist already
+        if (oldVersion < 2 && !hasColumn(db, TABLE_APPS, FIELD_COLLAPSED_MESSAGE_COUNT)) {
+            db.execSQL("ALTER TABLE " + TABLE_APPS + " ADD COLUMN " + FIELD_COLLAPSED_MESSAGE_COUNT + " INTEGER DEFAULT 0;");
+        }
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Newer versions only added columns with defaults, which older versions ignore. Recreating the database would
+        // lose all registrations, so keep it as is.
+    }
+
+    private static boolean hasColumn(SQLiteDatabase db, String table, String column) {
+        try (Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null)) {
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(nameIndex))) return true;
+            }
+        }
+        return false;
     }
 
 }
@@ -0,0 +1,324 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.microg.gms.gcm.mcs.DataMessageStanza;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers app messages on worker threads, so that slow deliveries don't stall reading from the MCS connection.
+ * <p>
+ * Messages for the same app are delivered in the order they were received. If more than the maximum number of messages
+ * are pending, {@link #offer(DataMessageStanza, boolean)} blocks until messages were delivered.
+ * <p>
+ * Low priority messages are held back for a short time, so that bursts of messages for the same app are delivered with a
+ * single wakeup. Held back messages with the same collapse key replace each other. The wake lock, if given, keeps the device
+ * awake while messages are held back, until they were delivered.
+ * <p>
+ * {@link #shutdown()} delivers all messages that are still queued or held back before it returns. Messages offered after
+ * shutdown are delivered on the calling thread.
+ */
+public class GcmDeliveryQueue {
+    private static final String TAG = "GmsGcmDelivery";
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final int DEFAULT_WORKERS = 2;
+    // Give other apps a chance after this many messages of the same app
+    private static final int MAX_MESSAGES_PER_TURN = 16;
+    private static final long DEFAULT_BATCH_WINDOW = 5000;
+    private static final int MAX_BATCH_SIZE = 32;
+    private static final long SHUTDOWN_TIMEOUT = 10000;
+    // Time for delivering a batch after its window ended, before the wake lock times out
+    private static final long WAKELOCK_MARGIN = 10000;
+
+    public interface Delivery {
+        /**
+         * @param wakeup if the app should be woken up for the message. Only the first message of a batch wakes up the app.
+         */
+        void deliver(DataMessageStanza message, boolean wakeup);
+
+        /**
+         * Called when a message was replaced by a newer message with the same collapse key before delivery.
+         */
+        void collapsed(DataMessageStanza message);
+    }
+
+    private static class Entry {
+        final DataMessageStanza message;
+        final long enqueued;
+        boolean wakeup = true;
+
+        Entry(DataMessageStanza message) {
+            this.message = message;
+            this.enqueued = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private final Delivery delivery;
+    private final int capacity;
+    private final long batchWindow;
+    private final PowerManager.WakeLock wakeLock;
+    private final ScheduledThreadPoolExecutor executor;
+    // Messages ready for delivery, a package is only contained while a worker is scheduled for it
+    private final Map<String, ArrayDeque<Entry>> pending = new HashMap<>();
+    // Low priority messages held back
+    private final Map<String, List<Entry>> batches = new HashMap<>();
+    // Scheduled end of the window of each held back batch
+    private final Map<String, ScheduledFuture<?>> batchFlushes = new HashMap<>();
+    private int size = 0;
+    private boolean shutdown = false;
+
+    private long delivered = 0;
+    private long failed = 0;
+    private long collapsed = 0;
+    private long totalLatency = 0;
+    private long maxLatency = 0;
+
+    public GcmDeliveryQueue(Delivery delivery) {
+        this(delivery, null);
+    }
+
+    /**
+     * @param wakeLock not reference counted wake lock held while messages are held back, or null
+     */
+    public GcmDeliveryQueue(Delivery delivery, PowerManager.WakeLock wakeLock) {
+        this(delivery, DEFAULT_CAPACITY, DEFAULT_WORKERS, wakeLock);
+    }
+
+    public GcmDeliveryQueue(Delivery delivery, int capacity, int workers, PowerManager.WakeLock wakeLock) {
+        this(delivery, capacity, workers, DEFAULT_BATCH_WINDOW, wakeLock);
+    }
+
+    GcmDeliveryQueue(Delivery delivery, int capacity, int workers, long batchWindow, PowerManager.WakeLock wakeLock) {
+        this.delivery = delivery;
+        this.capacity = capacity;
+        this.batchWindow = batchWindow;
+        this.wakeLock = wakeLock;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(workers, runnable -> {
+            Thread thread = new Thread(runnable, "GcmDelivery-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Held back batches are moved for delivery on shutdown, no need to wait for their window to end
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        // Batches that are moved early cancel the end of their window
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    public void offer(DataMessageStanza message, boolean lowPriority) {
+        String packageName = message.category;
+        Entry replaced = null;
+        boolean schedule;
+        synchronized (this) {
+            while (size >= capacity && !shutdown) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Messages must not get lost, so exceed the capacity instead
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            size++;
+            Entry entry = new Entry(message);
+            if (lowPriority && !shutdown) {
+                List<Entry> batch = batches.get(packageName);
+                if (batch == null) {
+                    batch = new ArrayList<>();
+                    batches.put(packageName, batch);
+                    // Otherwise the device may suspend and the window could last much longer
+                    if (wakeLock != null) wakeLock.acquire(batchWindow + WAKELOCK_MARGIN);
+                    List<Entry> newBatch = batch;
+                    batchFlushes.put(packageName, executor.schedule(() -> flushBatch(packageName, newBatch), batchWindow, TimeUnit.MILLISECONDS));
+                }
+                if (message.token != null) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (message.token.equals(batch.get(i).message.token)) {
+                            replaced = batch.remove(i);
+                            size--;
+                            collapsed++;
+                            break;
+                        }
+                    }
+                }
+                batch.add(entry);
+                schedule = batch.size() >= MAX_BATCH_SIZE && moveBatchLocked(packageName);
+            } else {
+                // Deliver messages held back before, to keep the order
+                boolean scheduled = moveBatchLocked(packageName);
+                schedule = addPendingLocked(packageName, entry) || scheduled;
+            }
+        }
+        if (replaced != null) delivery.collapsed(replaced.message);
+        if (schedule) schedule(packageName);
+    }
+
+    /**
+     * @return true if a worker needs to be scheduled for the package
+     */
+    private boolean addPendingLocked(String packageName, Entry entry) {
+        ArrayDeque<Entry> queue = pending.get(packageName);
+        if (queue != null) {
+            // A worker is already delivering messages for the app and will pick this one up as well
+            queue.add(entry);
+            return false;
+        }
+        queue = new ArrayDeque<>();
+        queue.add(entry);
+        pending.put(packageName, queue);
+        return true;
+    }
+
+    /**
+     * @return true if a worker needs to be scheduled for the package
+     */
+    private boolean moveBatchLocked(String packageName) {
+        // Otherwise the end of the window of this batch would move a later batch of the package early
+        ScheduledFuture<?> flush = batchFlushes.remove(packageName);
+        if (flush != null) flush.cancel(false);
+        List<Entry> batch = batches.remove(packageName);
+        if (batch == null || batch.isEmpty()) return false;
+        boolean schedule = false;
+        for (int i = 0; i < batch.size(); i++) {
+            Entry entry = batch.get(i);
+            entry.wakeup = i == 0;
+            schedule |= addPendingLocked(packageName, entry);
+        }
+        return schedule;
+    }
+
+    private void flushBatch(String packageName, List<Entry> batch) {
+        boolean schedule;
+        synchronized (this) {
+            // The batch may have been moved while this was waiting for the lock
+            schedule = batches.get(packageName) == batch && moveBatchLocked(packageName);
+        }
+        if (schedule) schedule(packageName);
+    }
+
+    private void schedule(String packageName) {
+        if (!tryExecute(packageName)) {
+            // Already shut down, deliver on this thread instead
+            drain(packageName);
+        }
+    }
+
+    private boolean tryExecute(String packageName) {
+        try {
+            executor.execute(() -> drain(packageName));
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private void drain(String packageName) {
+        while (true) {
+            if (!drainTurn(packageName)) return;
+            // Give other apps a chance, unless shut down meanwhile, then continue on this thread
+            if (tryExecute(packageName)) return;
+        }
+    }
+
+    /**
+     * @return true if more messages are pending for the package
+     */
+    private boolean drainTurn(String packageName) {
+        for (int i = 0; i < MAX_MESSAGES_PER_TURN; i++) {
+            Entry entry;
+            synchronized (this) {
+                ArrayDeque<Entry> queue = pending.get(packageName);
+                entry = queue == null ? null : queue.poll();
+                if (entry == null) {
+                    pending.remove(packageName);
+                    if (size == 0 && batches.isEmpty()) releaseWakeLockLocked();
+                    return false;
+                }
+            }
+            boolean success = true;
+            try {
+                delivery.deliver(entry.message, entry.wakeup);
+            } catch (Exception e) {
+                Log.w(TAG, "Failed delivering message to " + packageName, e);
+                success = false;
+            }
+            long latency = SystemClock.elapsedRealtime() - entry.enqueued;
+            synchronized (this) {
+                size--;
+                if (success) {
+                    delivered++;
+                    totalLatency += latency;
+                    if (latency > maxLatency) maxLatency = latency;
+                } else {
+                    failed++;
+                }
+                notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops batching and delivers all messages that are queued or held back. Blocks until they were delivered, but not
+     * longer than a few seconds.
+     */
+    public void shutdown() {
+        List<String> toSchedule = new ArrayList<>();
+        synchronized (this) {
+            if (shutdown) return;
+            shutdown = true;
+            for (String packageName : new ArrayList<>(batches.keySet())) {
+                if (moveBatchLocked(packageName)) toSchedule.add(packageName);
+            }
+            notifyAll();
+        }
+        for (String packageName : toSchedule) {
+            schedule(packageName);
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Messages still being delivered after shutdown: " + this);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            releaseWakeLockLocked();
+        }
+    }
+
+    private void releaseWakeLockLocked() {
+        if (wakeLock != null && wakeLock.isHeld()) wakeLock.release();
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    public synchronized long getAverageLatency() {
+        return delivered == 0 ? 0 : totalLatency / delivered;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "queued=" + size + " delivered=" + delivered + " failed=" + failed + " collapsed=" + collapsed + " latency avg=" + getAverageLatency() + "ms max=" + maxLatency + "ms";
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.PermissionInfo;
+import android.content.pm.ResolveInfo;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.microg.gms.gcm.GcmConstants.ACTION_C2DM_RECEIVE;
+
+/**
+ * Caches the receivers and C2D_MESSAGE permission used to deliver messages to an app, so they don't have to be resolved for
+ * every message. The cache is cleared whenever a package is added, replaced, changed or removed.
+ */
+public class GcmReceiverCache extends BroadcastReceiver {
+    private static final String TAG = "GmsGcmReceiverCache";
+
+    public static class Target {
+        /**
+         * The C2D_MESSAGE permission defined by the app or null if the app does not define it.
+         */
+        public final String receiverPermission;
+        /**
+         * Receivers of the app itself, only used if {@link #receiverPermission} is not null.
+         */
+        public final List<ComponentName> ownReceivers;
+        /**
+         * Receivers of other packages that handle messages for the app, only used if {@link #receiverPermission} is not null.
+         */
+        public final List<ComponentName> thirdPartyReceivers;
+
+        private Target(String receiverPermission, List<ComponentName> ownReceivers, List<ComponentName> thirdPartyReceivers) {
+            this.receiverPermission = receiverPermission;
+            this.ownReceivers = ownReceivers;
+            this.thirdPartyReceivers = thirdPartyReceivers;
+        }
+    }
+
+    private final Context context;
+    private final Map<String, Target> targets = new HashMap<>();
+    private int hits = 0;
+    private int misses = 0;
+
+    public GcmReceiverCache(Context context) {
+        this.context = context;
+    }
+
+    public void register() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        ContextCompat.registerReceiver(context, this, filter, ContextCompat.RECEIVER_NOT_EXPORTED);
+    }
+
+    public void unregister() {
+        try {
+            context.unregisterReceiver(this);
+        } catch (Exception ignored) {
+        }
+        clear();
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        // Receivers of other packages can handle messages for an app, so any package change may affect any app
+        clear();
+    }
+
+    public synchronized void clear() {
+        targets.clear();
+    }
+
+    public synchronized Target get(String packageName) {
+        Target target = targets.get(packageName);
+        if (target != null) {
+            hits++;
+            return target;
+        }
+        misses++;
+        target = resolve(packageName);
+        targets.put(packageName, target);
+        return target;
+    }
+
+    private Target resolve(String packageName) {
+        PackageManager packageManager = context.getPackageManager();
+        String receiverPermission = null;
+        try {
+            String name = packageName + ".permission.C2D_MESSAGE";
+            PermissionInfo info = packageManager.getPermissionInfo(name, 0);
+            if (info.packageName.equals(packageName)) {
+                receiverPermission = name;
+            }
+        } catch (Exception ignored) {
+            // Keep null, no valid permission found
+        }
+        if (receiverPermission == null) {
+            return new Target(null, Collections.emptyList(), Collections.emptyList());
+        }
+
+        List<ComponentName> ownReceivers = new ArrayList<>();
+        List<ComponentName> thirdPartyReceivers = new ArrayList<>();
+        try {
+            List<ResolveInfo> infos = packageManager.queryBroadcastReceivers(new Intent(ACTION_C2DM_RECEIVE), PackageManager.GET_RESOLVED_FILTER);
+            if (infos != null) {
+                for (ResolveInfo resolveInfo : infos) {
+                    ComponentName component = new ComponentName(resolveInfo.activityInfo.packageName, resolveInfo.activityInfo.name);
+                    if (resolveInfo.activityInfo.packageName.equals(packageName)) {
+                        ownReceivers.add(component);
+                    } else if (resolveInfo.filter != null && resolveInfo.filter.hasCategory(packageName)) {
+                        thirdPartyReceivers.add(component);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, e);
+        }
+        return new Target(receiverPermission, ownReceivers, thirdPartyReceivers);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "size=" + targets.size() + " hits=" + hits + " miss=" + misses;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Learns the longest heartbeat interval that keeps the connection alive, separately for every network.
+ * <p>
+ * The interval is increased step by step after heartbeats with the current interval succeeded a few times in a row. If a
+ * heartbeat times out, the failed interval is remembered as upper bound and the interval is reduced again. Further probing
+ * then only happens between the last successful and the failed interval. Learned intervals are persisted, so a known network
+ * starts with the interval learned before.
+ */
+public class HeartbeatLearner {
+    private static final String TAG = "GmsGcmHeartbeat";
+    private static final String PREFERENCES_NAME = "gcm_heartbeat";
+
+    static final int MIN_INTERVAL = 2 * 60 * 1000; // 2 minutes
+    static final int MAX_INTERVAL = 28 * 60 * 1000; // 28 minutes
+    static final int MIN_PROBE_STEP = 30 * 1000;
+    // Heartbeats that must succeed with an interval before trying a longer one
+    private static final int CONFIRMATIONS = 3;
+    // Failed intervals are tried again after this time, the network might have changed
+    static final long CEILING_EXPIRY = 7 * 24 * 60 * 60 * 1000L;
+
+    private static class State {
+        // Longest interval that is known to work
+        int safe;
+        // Shortest interval that is known to fail or 0 if none
+        int ceiling;
+        long ceilingTime;
+        int confirmations;
+
+        static State parse(String value) {
+            if (value == null) return null;
+            String[] parts = value.split(",");
+            if (parts.length != 4) return null;
+            try {
+                State state = new State();
+                state.safe = Integer.parseInt(parts[0]);
+                state.ceiling = Integer.parseInt(parts[1]);
+                state.ceilingTime = Long.parseLong(parts[2]);
+                state.confirmations = Integer.parseInt(parts[3]);
+                return state;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return safe + "," + ceiling + "," + ceilingTime + "," + confirmations;
+        }
+    }
+
+    /**
+     * Persists the learned state of each network.
+     */
+    interface Storage {
+        String get(String network);
+
+        void put(String network, String state);
+    }
+
+    interface Clock {
+        long currentTimeMillis();
+    }
+
+    private static class PreferencesStorage implements Storage {
+        private final SharedPreferences preferences;
+
+        PreferencesStorage(SharedPreferences preferences) {
+            this.preferences = preferences;
+        }
+
+        @Override
+        public String get(String network) {
+            return preferences.getString(network, null);
+        }
+
+        @Override
+        public void put(String network, String state) {
+            preferences.edit().putString(network, state).apply();
+        }
+    }
+
+    private final Storage storage;
+    private final Clock clock;
+    private String network;
+    private State state;
+    private boolean failed;
+
+    public HeartbeatLearner(Context context) {
+        this(new PreferencesStorage(context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)), System::currentTimeMillis);
+    }
+
+    HeartbeatLearner(Storage storage, Clock clock) {
+        this.storage = storage;
+        this.clock = clock;
+    }
+
+    /**
+     * Call when connecting on a network.
+     *
+     * @param network         key of the network as returned by {@link #getNetworkKey(Context, NetworkInfo, String)}
+     * @param initialInterval interval to start with if nothing was learned for the network yet
+     */
+    public synchronized void onConnected(String network, int initialInterval) {
+        this.network = network;
+        this.failed = false;
+        State state = State.parse(storage.get(network));
+        if (state == null) {
+            state = new State();
+            state.safe = Math.max(MIN_INTERVAL, Math.min(initialInterval, MAX_INTERVAL));
+        }
+        if (state.ceiling != 0 && clock.currentTimeMillis() - state.ceilingTime > CEILING_EXPIRY) {
+            state.ceiling = 0;
+        }
+        this.state = state;
+        Log.d(TAG, "Connected to " + network + ", heartbeat " + getInterval() / 1000 + "s (" + this + ")");
+    }
+
+    /**
+     * @return the interval to use for the next heartbeat
+     */
+    public synchronized int getInterval() {
+        if (state == null) return MIN_INTERVAL;
+        int upper = state.ceiling != 0 ? state.ceiling - MIN_PROBE_STEP : MAX_INTERVAL;
+        if (state.confirmations < CONFIRMATIONS || state.safe >= upper) return state.safe;
+        int step = state.ceiling != 0 ? (upper - state.safe) / 2 : state.safe / 5;
+        return Math.min(upper, state.safe + Math.max(MIN_PROBE_STEP, step));
+    }
+
+    /**
+     * Call when a heartbeat was acknowledged.
+     *
+     * @param idle time without any incoming data before the acknowledgement
+     */
+    public synchronized void onHeartbeatAck(long idle) {
+        if (state == null) return;
+        int interval = getInterval();
+        // Only a heartbeat on an otherwise idle connection tells if the interval is safe
+        if (idle < interval / 4 * 3) return;
+        if (interval > state.safe) {
+            state.safe = interval;
+            state.confirmations = 1;
+        } else if (state.confirmations < CONFIRMATIONS) {
+            state.confirmations++;
+        } else {
+            return;
+        }
+        save();
+    }
+
+    /**
+     * Call when the connection was lost because a heartbeat was not acknowledged in time.
+     */
+    public synchronized void onTimeout() {
+        if (state == null || failed) return;
+        // Count every connection only once, it's reported from multiple places
+        failed = true;
+        int interval = getInterval();
+        if (interval > state.safe) {
+            state.ceiling = interval;
+        } else {
+            state.ceiling = state.safe;
+            state.safe = Math.max(MIN_INTERVAL, state.safe / 4 * 3);
+        }
+        state.ceilingTime = clock.currentTimeMillis();
+        state.confirmations = 0;
+        Log.d(TAG, "Heartbeat " + interval / 1000 + "s failed on " + network + ", backing off to " + state.safe / 1000 + "s");
+        save();
+    }
+
+    private void save() {
+        storage.put(network, state.toString());
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (state == null) return "network=null";
+        return "network=" + network + " safe=" + state.safe / 1000 + "s ceiling=" + state.ceiling / 1000 + "s confirmations=" + state.confirmations;
+    }
+
+    /**
+     * @return a key identifying the network by Wi-Fi SSID or mobile operator, falling back to the network type
+     */
+    @SuppressWarnings("deprecation")
+    public static String getNetworkKey(Context context, NetworkInfo info, String networkPref) {
+        String id = null;
+        try {
+            if (info != null && info.getType() == ConnectivityManager.TYPE_WIFI) {
+                WifiManager wifiManager = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+                WifiInfo wifiInfo = wifiManager == null ? null : wifiManager.getConnectionInfo();
+                if (wifiInfo != null && !"<unknown ssid>".equals(wifiInfo.getSSID())) {
+                    id = wifiInfo.getSSID();
+                }
+            } else if (info != null && info.getType() == ConnectivityManager.TYPE_MOBILE) {
+                TelephonyManager telephonyManager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+                if (telephonyManager != null) {
+                    id = telephonyManager.getNetworkOperator();
+                }
+            }
+        } catch (Exception e) {
+            // Missing permission, use network type only
+            Log.w(TAG, e);
+        }
+        if (TextUtils.isEmpty(id)) return networkPref;
+        // Don't store network names in plain text
+        return networkPref + ":" + Integer.toHexString(id.hashCode());
+    }
+}
@@ -33,6 +33,10 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+
 import static org.microg.gms.gcm.McsConstants.MCS_CLOSE_TAG;
 import static org.microg.gms.gcm.McsConstants.MCS_DATA_MESSAGE_STANZA_TAG;
 import static org.microg.gms.gcm.McsConstants.MCS_HEARTBEAT_ACK_TAG;
@@ -47,8 +51,10 @@ import static org.microg.gms.gcm.McsConstants.MSG_TEARDOWN;
 public class McsInputStream extends Thread implements Closeable {
     private static final String TAG = "GmsGcmMcsInput";
 
-    private final InputStream is;
+    private final BufferedSource source;
     private final Handler mainHandler;
+    // Reused for every stanza, its segments are returned to okio's segment pool after decoding
+    private final Buffer stanzaBuffer = new Buffer();
 
     private boolean initialized;
     private int version = -1;
@@ -63,7 +69,11 @@ public class McsInputStream extends Thread implements Closeable {
     }
 
     public McsInputStream(InputStream is, Handler mainHandler, boolean initialized) {
-        this.is = is;
+        this(Okio.buffer(Okio.source(is)), mainHandler, initialized);
+    }
+
+    public McsInputStream(BufferedSource source, Handler mainHandler, boolean initialized) {
+        this.source = source;
         this.mainHandler = mainHandler;
         this.initialized = initialized;
         setName("McsInputStream");
@@ -89,7 +99,7 @@ public class McsInputStream extends Thread implements Closeable {
             }
         }
         try {
-            is.close();
+            source.close();
         } catch (IOException ignored) {
         }
     }
@@ -119,7 +129,7 @@ public class McsInputStream extends Thread implements Closeable {
     private synchronized void ensureVersionRead() {
         if (!initialized) {
             try {
-                version = is.read();
+                version = source.request(1) ? source.readByte() & 0xFF : -1;
                 Log.d(TAG, "Reading from MCS version: " + version);
                 initialized = true;
             } catch (IOException e) {
@@ -130,25 +140,28 @@ public class McsInputStream extends Thread implements Closeable {
 
     public synchronized android.os.Message read() throws IOException {
         ensureVersionRead();
-        int mcsTag = is.read();
-        int mcsSize = readVarint();
+        int mcsTag = source.request(1) ? source.readByte() & 0xFF : -1;
+        int mcsSize = mcsTag < 0 ? -1 : readVarint();
         if (mcsTag < 0 || mcsSize < 0) {
             Log.w(TAG, "mcsTag: " + mcsTag + " mcsSize: " + mcsSize);
             return null;
         }
-        byte[] bytes = new byte[mcsSize];
-        int len = 0, read = 0;
+        // Move the stanza into a separate buffer, so the decoder can not read beyond its end.
+        // This moves segments between buffers where possible instead of copying.
+        stanzaBuffer.clear();
+        long len = 0, read = 0;
         while (len < mcsSize && read >= 0) {
-            len += (read = is.read(bytes, len, mcsSize - len)) < 0 ? 0 : read;
+            len += (read = source.read(stanzaBuffer, mcsSize - len)) < 0 ? 0 : read;
         }
-        Message message = read(mcsTag, bytes, len);
+        Message message = read(mcsTag, stanzaBuffer);
+        stanzaBuffer.clear();
         if (message == null) return null;
         Log.d(TAG, "Incoming message: " + message);
         streamId++;
         return mainHandler.obtainMessage(MSG_INPUT, mcsTag, streamId, message);
     }
 
-    private static Message read(int mcsTag, byte[] bytes, int len) throws IOException {
+    private static Message read(int mcsTag, BufferedSource bytes) throws IOException {
         try {
             switch (mcsTag) {
                 case MCS_HEARTBEAT_PING_TAG:
@@ -178,7 +191,9 @@ public class McsInputStream extends Thread implements Closeable {
     private int readVarint() throws IOException {
         int res = 0, s = -7, read;
         do {
-            res |= ((read = is.read()) & 0x7F) << (s += 7);
+            // Served from the source's buffer, only reads from the socket if it is exhausted
+            read = source.request(1) ? source.readByte() & 0xFF : -1;
+            res |= (read & 0x7F) << (s += 7);
         } while (read >= 0 && (read & 0x80) == 0x80 && s < 32);
         if (read < 0) return -1;
         return res;
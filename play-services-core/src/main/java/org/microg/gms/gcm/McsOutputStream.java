@@ -25,6 +25,12 @@ import com.squareup.wire.Message;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
 
 import static org.microg.gms.gcm.McsConstants.MCS_VERSION_CODE;
 import static org.microg.gms.gcm.McsConstants.MSG_OUTPUT;
@@ -35,12 +41,20 @@ import static org.microg.gms.gcm.McsConstants.MSG_TEARDOWN;
 
 public class McsOutputStream extends Thread implements Handler.Callback, Closeable {
     private static final String TAG = "GmsGcmMcsOutput";
+    private static final long MAX_BUFFERED_BYTES = 64 * 1024;
 
-    private final OutputStream os;
+    private final BufferedSink sink;
+    private final Buffer payload = new Buffer();
     private boolean initialized;
     private int version = MCS_VERSION_CODE;
     private int streamId = 0;
 
+    // Completion of written messages is only reported once they were flushed
+    private final List<android.os.Message> pendingDone = new ArrayList<>();
+    private volatile long bytesWritten = 0;
+    private volatile long messagesWritten = 0;
+    private volatile long flushes = 0;
+
     private final Handler mainHandler;
     private Handler myHandler;
 
@@ -51,7 +65,7 @@ public class McsOutputStream extends Thread implements Handler.Callback, Closeab
     }
 
     public McsOutputStream(OutputStream os, Handler mainHandler, boolean initialized) {
-        this.os = os;
+        this.sink = Okio.buffer(Okio.sink(os));
         this.mainHandler = mainHandler;
         this.initialized = initialized;
         setName("McsOutputStream");
@@ -76,8 +90,13 @@ public class McsOutputStream extends Thread implements Handler.Callback, Closeab
                 try {
                     Log.d(TAG, "Outgoing message: " + msg.obj);
                     writeInternal((Message) msg.obj, msg.arg1);
-                    mainHandler.dispatchMessage(mainHandler.obtainMessage(MSG_OUTPUT_DONE, msg.arg1, msg.arg2, msg.obj));
+                    pendingDone.add(mainHandler.obtainMessage(MSG_OUTPUT_DONE, msg.arg1, msg.arg2, msg.obj));
+                    // Write messages that are already queued with the same flush
+                    if (!myHandler.hasMessages(MSG_OUTPUT) || sink.getBuffer().size() >= MAX_BUFFERED_BYTES) {
+                        flushInternal();
+                    }
                 } catch (IOException e) {
+                    pendingDone.clear();
                     if (closed) {
                         Log.d(TAG, "We were closed already. Ignoring IOException");
                     } else {
@@ -87,7 +106,7 @@ public class McsOutputStream extends Thread implements Handler.Callback, Closeab
                 return true;
             case MSG_TEARDOWN:
                 try {
-                    os.close();
+                    sink.close();
                 } catch (IOException ignored) {
                 }
                 try {
@@ -109,31 +128,52 @@ public class McsOutputStream extends Thread implements Handler.Callback, Closeab
     }
 
     private synchronized void writeInternal(Message message, int tag) throws IOException {
+        long bytes = 0;
         if (!initialized) {
             Log.d(TAG, "Write MCS version code: " + version);
-            os.write(version);
+            sink.writeByte(version);
+            bytes++;
             initialized = true;
         }
-        os.write(tag);
-        byte[] bytes = message.encode();
-        writeVarint(os, bytes.length);
-        os.write(bytes);
-        os.flush();
+        payload.clear();
+        message.encode(payload);
+        long size = payload.size();
+        sink.writeByte(tag);
+        bytes += 1 + writeVarint(sink, (int) size);
+        // Moves the segments of the payload, no copy required
+        sink.write(payload, size);
+        bytesWritten += bytes + size;
+        messagesWritten++;
         streamId++;
     }
 
-    private void writeVarint(OutputStream os, int value) throws IOException {
+    private void flushInternal() throws IOException {
+        sink.flush();
+        flushes++;
+        for (android.os.Message done : pendingDone) {
+            mainHandler.dispatchMessage(done);
+        }
+        pendingDone.clear();
+    }
+
+    private int writeVarint(BufferedSink sink, int value) throws IOException {
+        int bytes = 1;
         while (true) {
             if ((value & ~0x7FL) == 0) {
-                os.write(value);
-                return;
+                sink.writeByte(value);
+                return bytes;
             } else {
-                os.write((value & 0x7F) | 0x80);
+                sink.writeByte((value & 0x7F) | 0x80);
                 value >>>= 7;
+                bytes++;
             }
         }
     }
 
+    public String getStatistics() {
+        return "messages=" + messagesWritten + " bytes=" + bytesWritten + " flushes=" + flushes;
+    }
+
     public Handler getHandler() {
         return myHandler;
     }
@@ -24,8 +24,6 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.content.pm.PermissionInfo;
-import android.content.pm.ResolveInfo;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Bundle;
@@ -102,6 +100,9 @@ public class McsService extends Service implements Handler.Callback {
     private static final int WAKELOCK_TIMEOUT = 5000;
     // On bad mobile network a ping can take >60s, so we wait for an ACK for 90s
     private static final int HEARTBEAT_ACK_AFTER_PING_TIMEOUT_MS = 90000;
+    // Priority of data messages, "high" or "normal"
+    private static final String EXTRA_PRIORITY = "google.priority";
+    private static final String EXTRA_DELIVERED_PRIORITY = "google.delivered_priority";
 
     private static long lastHeartbeatPingElapsedRealtime = -1;
     private static long lastHeartbeatAckElapsedRealtime = -1;
@@ -121,6 +122,9 @@ public class McsService extends Service implements Handler.Callback {
     private static Handler rootHandler;
 
     private GcmDatabase database;
+    private GcmReceiverCache receiverCache;
+    private static GcmDeliveryQueue deliveryQueue;
+    private static HeartbeatLearner heartbeatLearner;
 
     private AlarmManager alarmManager;
     private PowerManager powerManager;
@@ -177,6 +181,23 @@ public class McsService extends Service implements Handler.Callback {
         super.onCreate();
         TriggerReceiver.register(this);
         database = new GcmDatabase(this);
+        receiverCache = new GcmReceiverCache(this);
+        receiverCache.register();
+        heartbeatLearner = new HeartbeatLearner(this);
+        PowerManager.WakeLock deliveryWakeLock = ((PowerManager) getSystemService(POWER_SERVICE)).newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "mcs:delivery");
+        deliveryWakeLock.setReferenceCounted(false);
+        deliveryQueue = new GcmDeliveryQueue(new GcmDeliveryQueue.Delivery() {
+            @Override
+            public void deliver(DataMessageStanza message, boolean wakeup) {
+                handleAppMessage(message, wakeup);
+            }
+
+            @Override
+            public void collapsed(DataMessageStanza message) {
+                logd(McsService.this, "Collapsed message " + message.persistent_id + " for " + message.category);
+                database.noteAppMessageCollapsed(message.category, DataMessageStanza.ADAPTER.encodedSize(message));
+            }
+        }, deliveryWakeLock);
         heartbeatIntent = PendingIntentCompat.getService(this, 0, new Intent(ACTION_HEARTBEAT, null, this, McsService.class), 0, false);
         alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
         powerManager = (PowerManager) getSystemService(POWER_SERVICE);
@@ -226,6 +247,9 @@ public class McsService extends Service implements Handler.Callback {
         Log.d(TAG, "onDestroy");
         alarmManager.cancel(heartbeatIntent);
         closeAll();
+        // Pending deliveries still need the receiver cache and database
+        deliveryQueue.shutdown();
+        receiverCache.unregister();
         database.close();
         super.onDestroy();
     }
@@ -242,7 +266,7 @@ public class McsService extends Service implements Handler.Callback {
             return false;
         }
         // consider connection to be dead if we did not receive an ack within 90s to our ping
-        int heartbeatMs = GcmPrefs.get(context).getHeartbeatMsFor(activeNetworkPref);
+        int heartbeatMs = getHeartbeatMs(context);
         // if disabled for active network, heartbeatMs will be -1
         if (heartbeatMs < 0) {
             closeAll();
@@ -252,13 +276,23 @@ public class McsService extends Service implements Handler.Callback {
             long timeSinceLastPing = SystemClock.elapsedRealtime() - lastHeartbeatPingElapsedRealtime;
             if (noAckReceived && timeSinceLastPing > HEARTBEAT_ACK_AFTER_PING_TIMEOUT_MS) {
                 logd(null, "No heartbeat for " + timeSinceLastPing / 1000 + "s, connection assumed to be dead after 90s");
-                GcmPrefs.get(context).learnTimeout(context, activeNetworkPref);
+                learnTimeout(context);
                 return false;
             }
         }
         return true;
     }
 
+    public static int getDeliveryQueueSize() {
+        GcmDeliveryQueue queue = deliveryQueue;
+        return queue == null ? 0 : queue.getSize();
+    }
+
+    public static long getAverageDeliveryLatency() {
+        GcmDeliveryQueue queue = deliveryQueue;
+        return queue == null ? 0 : queue.getAverageLatency();
+    }
+
     public static long getStartTimestamp() {
         warnIfNotPersistentProcess(McsService.class);
         return startTimestamp;
@@ -279,7 +313,7 @@ public class McsService extends Service implements Handler.Callback {
     public void scheduleHeartbeat(Context context) {
         AlarmManager alarmManager = (AlarmManager) context.getSystemService(ALARM_SERVICE);
 
-        int heartbeatMs = GcmPrefs.get(this).getHeartbeatMsFor(activeNetworkPref);
+        int heartbeatMs = getHeartbeatMs(context);
         if (heartbeatMs < 0) {
             closeAll();
         }
@@ -298,6 +332,25 @@ public class McsService extends Service implements Handler.Callback {
 
     }
 
+    private static int getHeartbeatMs(Context context) {
+        GcmPrefs prefs = GcmPrefs.get(context);
+        int heartbeatMs = prefs.getHeartbeatMsFor(activeNetworkPref);
+        HeartbeatLearner learner = heartbeatLearner;
+        if (heartbeatMs >= 0 && learner != null && prefs.isHeartbeatAutomaticFor(activeNetworkPref)) {
+            return learner.getInterval();
+        }
+        return heartbeatMs;
+    }
+
+    private static void learnTimeout(Context context) {
+        GcmPrefs prefs = GcmPrefs.get(context);
+        prefs.learnTimeout(context, activeNetworkPref);
+        HeartbeatLearner learner = heartbeatLearner;
+        if (learner != null && prefs.isHeartbeatAutomaticFor(activeNetworkPref)) {
+            learner.onTimeout();
+        }
+    }
+
     public synchronized static long getCurrentDelay() {
         long delay = currentDelay == 0 ? 5000 : currentDelay;
         if (currentDelay < 60000) currentDelay += 10000;
@@ -472,6 +525,9 @@ public class McsService extends Service implements Handler.Callback {
             scheduleReconnect(this);
             return;
         }
+        GcmPrefs prefs = GcmPrefs.get(this);
+        String networkKey = HeartbeatLearner.getNetworkKey(this, activeNetworkInfo, activeNetworkPref);
+        heartbeatLearner.onConnected(networkKey, prefs.getLearntHeartbeatMsFor(activeNetworkPref));
 
         Exception exception = null;
         for (int port : SERVICE_PORTS) {
@@ -517,7 +573,8 @@ public class McsService extends Service implements Handler.Callback {
         if (SELF_CATEGORY.equals(message.category)) {
             handleSelfMessage(message);
         } else {
-            handleAppMessage(message);
+            // Delivery can be slow, don't block reading further messages and heartbeats
+            deliveryQueue.offer(message, isLowPriority(message));
         }
     }
 
@@ -530,7 +587,12 @@ public class McsService extends Service implements Handler.Callback {
     }
 
     private void handleHeartbeatAck(HeartbeatAck ack) {
-        GcmPrefs.get(this).learnReached(this, activeNetworkPref, SystemClock.elapsedRealtime() - lastIncomingNetworkRealtime);
+        long idle = SystemClock.elapsedRealtime() - lastIncomingNetworkRealtime;
+        GcmPrefs prefs = GcmPrefs.get(this);
+        prefs.learnReached(this, activeNetworkPref, idle);
+        if (prefs.isHeartbeatAutomaticFor(activeNetworkPref)) {
+            heartbeatLearner.onHeartbeatAck(idle);
+        }
         lastHeartbeatAckElapsedRealtime = SystemClock.elapsedRealtime();
         wakeLock.release();
     }
@@ -553,7 +615,17 @@ public class McsService extends Service implements Handler.Callback {
                 .build();
     }
 
-    private void handleAppMessage(DataMessageStanza msg) {
+    private static boolean isLowPriority(DataMessageStanza msg) {
+        for (AppData appData : msg.app_data) {
+            if (EXTRA_DELIVERED_PRIORITY.equals(appData.key) || EXTRA_PRIORITY.equals(appData.key)) {
+                return "normal".equals(appData.value_);
+            }
+        }
+        // Deliver immediately if unknown
+        return false;
+    }
+
+    private void handleAppMessage(DataMessageStanza msg, boolean wakeup) {
         String packageName = msg.category;
         database.noteAppMessage(packageName, DataMessageStanza.ADAPTER.encodedSize(msg));
         GcmDatabase.App app = database.getApp(packageName);
@@ -583,41 +655,33 @@ public class McsService extends Service implements Handler.Callback {
             intent.putExtra(appData.key, appData.value_);
         }
 
-        String receiverPermission = null;
-        try {
-            String name = packageName + ".permission.C2D_MESSAGE";
-            PermissionInfo info = getPackageManager().getPermissionInfo(name, 0);
-            if (info.packageName.equals(packageName)) {
-                receiverPermission = name;
-            }
-        } catch (Exception ignored) {
-            // Keep null, no valid permission found
-        }
+        GcmReceiverCache.Target target = receiverCache.get(packageName);
+        String receiverPermission = target.receiverPermission;
 
         if (receiverPermission == null) {
             // Without receiver permission, we only restrict by package name
-            if (app.wakeForDelivery) addPowerSaveTempWhitelistApp(packageName);
+            if (app.wakeForDelivery && wakeup) addPowerSaveTempWhitelistApp(packageName);
             logd(this, "Deliver message to all receivers in package " + packageName);
             intent.setPackage(packageName);
             sendOrderedBroadcast(intent, null);
         } else {
-            List<ResolveInfo> infos = getPackageManager().queryBroadcastReceivers(intent, PackageManager.GET_RESOLVED_FILTER);
-            if (infos == null || infos.isEmpty()) {
+            if (target.ownReceivers.isEmpty() && target.thirdPartyReceivers.isEmpty()) {
                 logd(this, "No target for message, wut?");
             } else {
-                for (ResolveInfo resolveInfo : infos) {
+                for (ComponentName component : target.ownReceivers) {
                     Intent targetIntent = new Intent(intent);
-                    targetIntent.setComponent(new ComponentName(resolveInfo.activityInfo.packageName, resolveInfo.activityInfo.name));
-                    if (resolveInfo.activityInfo.packageName.equals(packageName)) {
-                        if (app.wakeForDelivery) addPowerSaveTempWhitelistApp(packageName);
-                        // We don't need receiver permission for our own package
-                        logd(this, "Deliver message to own receiver " + resolveInfo);
-                        sendOrderedBroadcast(targetIntent, null);
-                    } else if (resolveInfo.filter.hasCategory(packageName)) {
-                        // Permission required
-                        logd(this, "Deliver message to third-party receiver (with permission check)" + resolveInfo);
-                        sendOrderedBroadcast(targetIntent, receiverPermission);
-                    }
+                    targetIntent.setComponent(component);
+                    if (app.wakeForDelivery && wakeup) addPowerSaveTempWhitelistApp(packageName);
+                    // We don't need receiver permission for our own package
+                    logd(this, "Deliver message to own receiver " + component);
+                    sendOrderedBroadcast(targetIntent, null);
+                }
+                for (ComponentName component : target.thirdPartyReceivers) {
+                    Intent targetIntent = new Intent(intent);
+                    targetIntent.setComponent(component);
+                    // Permission required
+                    logd(this, "Deliver message to third-party receiver (with permission check)" + component);
+                    sendOrderedBroadcast(targetIntent, receiverPermission);
                 }
             }
         }
@@ -692,7 +756,7 @@ public class McsService extends Service implements Handler.Callback {
                 if (msg.obj instanceof SocketException) {
                     SocketException e = (SocketException) msg.obj;
                     if ("Connection reset".equals(e.getMessage())) {
-                        GcmPrefs.get(this).learnTimeout(this, activeNetworkPref);
+                        learnTimeout(this);
                     }
                 }
                 rootHandler.sendMessage(rootHandler.obtainMessage(MSG_TEARDOWN, msg.obj));
@@ -818,6 +882,11 @@ public class McsService extends Service implements Handler.Callback {
             return;
         }
         wasTornDown = true;
+        database.flush();
+        if (outputStream != null) {
+            logd(this, "Connection output: " + outputStream.getStatistics());
+        }
+        logd(this, "Delivery: " + deliveryQueue + ", receivers: " + receiverCache + ", heartbeat: " + heartbeatLearner);
         closeAll();
 
         scheduleReconnect(this);
@@ -129,6 +129,22 @@ data class GcmPrefs(
         }
     }
 
+    /**
+     * @return true if the heartbeat interval for the network is not configured, but learned automatically
+     */
+    fun isHeartbeatAutomaticFor(pref: String): Boolean = when (pref) {
+        PREF_NETWORK_ROAMING -> networkRoaming == 0
+        PREF_NETWORK_MOBILE -> networkMobile == 0
+        PREF_NETWORK_WIFI -> networkWifi == 0
+        else -> networkOther == 0
+    }
+
+    fun getLearntHeartbeatMsFor(pref: String): Int = when (pref) {
+        PREF_NETWORK_MOBILE, PREF_NETWORK_ROAMING -> learntMobileInterval
+        PREF_NETWORK_WIFI -> learntWifiInterval
+        else -> learntOtherInterval
+    }
+
     fun learnTimeout(context: Context, pref: String) {
         Log.d("GmsGcmPrefs", "learnTimeout: $pref")
         when (pref) {
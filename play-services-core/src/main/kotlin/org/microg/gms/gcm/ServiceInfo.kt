@@ -22,7 +22,7 @@ private const val ACTION_SERVICE_INFO_RESPONSE = "org.microg.gms.gcm.SERVICE_INF
 private const val EXTRA_SERVICE_INFO = "org.microg.gms.gcm.SERVICE_INFO"
 private const val TAG = "GmsGcmStatusInfo"
 
-data class ServiceInfo(val configuration: ServiceConfiguration, val connected: Boolean, val startTimestamp: Long, val learntMobileInterval: Int, val learntWifiInterval: Int, val learntOtherInterval: Int) : Serializable
+data class ServiceInfo(val configuration: ServiceConfiguration, val connected: Boolean, val startTimestamp: Long, val learntMobileInterval: Int, val learntWifiInterval: Int, val learntOtherInterval: Int, val deliveryQueueSize: Int = 0, val deliveryLatency: Long = 0) : Serializable
 
 data class ServiceConfiguration(val enabled: Boolean, val confirmNewApps: Boolean, val mobile: Int, val wifi: Int, val roaming: Int, val other: Int) : Serializable
 
@@ -40,7 +40,9 @@ class ServiceInfoReceiver : BroadcastReceiver() {
                     startTimestamp = McsService.getStartTimestamp(),
                     learntMobileInterval = prefs.learntMobileInterval,
                     learntWifiInterval = prefs.learntWifiInterval,
-                    learntOtherInterval = prefs.learntOtherInterval
+                    learntOtherInterval = prefs.learntOtherInterval,
+                    deliveryQueueSize = McsService.getDeliveryQueueSize(),
+                    deliveryLatency = McsService.getAverageDeliveryLatency()
                 )
                 putExtra(EXTRA_SERVICE_INFO, info)
             }, null)
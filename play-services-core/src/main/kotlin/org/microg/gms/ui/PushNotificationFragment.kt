@@ -89,7 +89,8 @@ class PushNotificationFragment : PreferenceFragmentCompat() {
             switchBarPreference.isChecked = statusInfo.configuration.enabled
             pushStatusCategory.isVisible = statusInfo != null && statusInfo.configuration.enabled
             pushStatus.summary = if (statusInfo != null && statusInfo.connected) {
-                appContext.getString(R.string.gcm_network_state_connected, DateUtils.getRelativeTimeSpanString(statusInfo.startTimestamp, System.currentTimeMillis(), 0))
+                appContext.getString(R.string.gcm_network_state_connected, DateUtils.getRelativeTimeSpanString(statusInfo.startTimestamp, System.currentTimeMillis(), 0)) + "\n" +
+                        appContext.getString(R.string.gcm_delivery_state, statusInfo.deliveryQueueSize, statusInfo.deliveryLatency)
             } else {
                 appContext.getString(R.string.gcm_network_state_disconnected)
             }
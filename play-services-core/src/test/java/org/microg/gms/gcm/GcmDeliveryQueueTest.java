@@ -0,0 +1,126 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import junit.framework.TestCase;
+
+import org.microg.gms.gcm.mcs.DataMessageStanza;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class GcmDeliveryQueueTest extends TestCase {
+
+    private static class RecordingDelivery implements GcmDeliveryQueue.Delivery {
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+        final List<String> collapsed = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile boolean block;
+
+        @Override
+        public void deliver(DataMessageStanza message, boolean wakeup) {
+            started.countDown();
+            if (block) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            delivered.add(message.persistent_id);
+        }
+
+        @Override
+        public void collapsed(DataMessageStanza message) {
+            collapsed.add(message.persistent_id);
+        }
+    }
+
+    private static DataMessageStanza message(String packageName, String id) {
+        return new DataMessageStanza.Builder().from("sender").category(packageName).persistent_id(id).build();
+    }
+
+    public void testShutdownDeliversHeldBatch() {
+        RecordingDelivery delivery = new RecordingDelivery();
+        GcmDeliveryQueue queue = new GcmDeliveryQueue(delivery);
+        queue.offer(message("a", "1"), true);
+        queue.offer(message("b", "2"), true);
+        queue.offer(message("a", "3"), true);
+        // Still within the batch window
+        assertTrue(delivery.delivered.isEmpty());
+
+        queue.shutdown();
+        assertEquals(3, delivery.delivered.size());
+        assertTrue(delivery.delivered.indexOf("1") < delivery.delivered.indexOf("3"));
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testShutdownDeliversMoreThanOneTurn() throws InterruptedException {
+        RecordingDelivery delivery = new RecordingDelivery();
+        delivery.block = true;
+        GcmDeliveryQueue queue = new GcmDeliveryQueue(delivery);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            expected.add(Integer.toString(i));
+            queue.offer(message("a", Integer.toString(i)), false);
+        }
+        assertTrue(delivery.started.await(5, TimeUnit.SECONDS));
+
+        // Worker is blocked in the first delivery, so all further messages are still queued when shutting down
+        new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignored) {
+            }
+            delivery.release.countDown();
+        }).start();
+        queue.shutdown();
+        assertEquals(expected, delivery.delivered);
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testOfferAfterShutdown() {
+        RecordingDelivery delivery = new RecordingDelivery();
+        GcmDeliveryQueue queue = new GcmDeliveryQueue(delivery);
+        queue.shutdown();
+        queue.offer(message("a", "1"), false);
+        queue.offer(message("a", "2"), true);
+        assertEquals(2, delivery.delivered.size());
+        assertEquals(0, queue.getSize());
+    }
+
+    public void testCollapseHeldBatch() {
+        RecordingDelivery delivery = new RecordingDelivery();
+        GcmDeliveryQueue queue = new GcmDeliveryQueue(delivery);
+        queue.offer(new DataMessageStanza.Builder().from("sender").category("a").persistent_id("1").token("key").build(), true);
+        queue.offer(new DataMessageStanza.Builder().from("sender").category("a").persistent_id("2").token("key").build(), true);
+        queue.shutdown();
+        assertEquals(Collections.singletonList("2"), delivery.delivered);
+        assertEquals(Collections.singletonList("1"), delivery.collapsed);
+    }
+
+    public void testMovedBatchDoesNotEndLaterWindow() throws InterruptedException {
+        RecordingDelivery delivery = new RecordingDelivery();
+        GcmDeliveryQueue queue = new GcmDeliveryQueue(delivery, 256, 2, 2000, null);
+        queue.offer(message("a", "1"), true);
+        // Normal priority message moves the held batch before its window ended
+        queue.offer(message("a", "2"), false);
+        Thread.sleep(1000);
+        queue.offer(message("a", "3"), true);
+        // Past the window of the first batch, but not of the second one
+        Thread.sleep(1500);
+        assertEquals(Arrays.asList("1", "2"), delivery.delivered);
+
+        Thread.sleep(1500);
+        assertEquals(Arrays.asList("1", "2", "3"), delivery.delivered);
+        queue.shutdown();
+    }
+}
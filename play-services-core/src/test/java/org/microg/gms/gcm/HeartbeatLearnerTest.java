@@ -0,0 +1,176 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Simulates heartbeats on a connection through a NAT that drops idle connections after a fixed time.
+ */
+public class HeartbeatLearnerTest extends TestCase {
+    private static final String NETWORK = "wifi:1234";
+    private static final int INITIAL_INTERVAL = 4 * 60 * 1000;
+    private static final int MINUTE = 60 * 1000;
+
+    private static class FakeClock implements HeartbeatLearner.Clock {
+        long time = 1000000000L;
+
+        @Override
+        public long currentTimeMillis() {
+            return time;
+        }
+    }
+
+    private static class MemoryStorage implements HeartbeatLearner.Storage {
+        final Map<String, String> values = new HashMap<>();
+
+        @Override
+        public String get(String network) {
+            return values.get(network);
+        }
+
+        @Override
+        public void put(String network, String state) {
+            values.put(network, state);
+        }
+    }
+
+    /**
+     * Socket that is only kept alive by the NAT if it's not idle for longer than the NAT timeout.
+     */
+    private static class Simulation {
+        final FakeClock clock = new FakeClock();
+        final MemoryStorage storage = new MemoryStorage();
+        HeartbeatLearner learner;
+        int natTimeout;
+        int timeouts;
+
+        Simulation(int natTimeout) {
+            this.natTimeout = natTimeout;
+            restart();
+        }
+
+        void restart() {
+            learner = new HeartbeatLearner(storage, clock);
+            learner.onConnected(NETWORK, INITIAL_INTERVAL);
+        }
+
+        void heartbeat() {
+            int interval = learner.getInterval();
+            clock.time += interval;
+            if (interval <= natTimeout) {
+                learner.onHeartbeatAck(interval);
+            } else {
+                // Connection was dropped silently, the heartbeat is not acknowledged and we reconnect
+                timeouts++;
+                learner.onTimeout();
+                clock.time += 10 * 1000;
+                learner.onConnected(NETWORK, INITIAL_INTERVAL);
+            }
+        }
+
+        void run(int heartbeats) {
+            for (int i = 0; i < heartbeats; i++) {
+                heartbeat();
+            }
+        }
+
+        /**
+         * @return the number of timeouts while running the heartbeats
+         */
+        int timeoutsDuring(int heartbeats) {
+            int before = timeouts;
+            run(heartbeats);
+            return timeouts - before;
+        }
+    }
+
+    private static void assertConverged(Simulation simulation, int natTimeout) {
+        int interval = simulation.learner.getInterval();
+        assertTrue("interval " + interval + " exceeds NAT timeout " + natTimeout, interval <= natTimeout);
+        assertTrue("interval " + interval + " too far below NAT timeout " + natTimeout, interval >= natTimeout - 2 * HeartbeatLearner.MIN_PROBE_STEP);
+    }
+
+    public void testDiscoversNatTimeout() {
+        Simulation simulation = new Simulation(17 * MINUTE);
+        simulation.run(200);
+        assertConverged(simulation, 17 * MINUTE);
+        assertTrue("too many timeouts: " + simulation.timeouts, simulation.timeouts <= 8);
+        // Once learned, no further heartbeats fail
+        assertEquals(0, simulation.timeoutsDuring(200));
+    }
+
+    public void testNeverExceedsLimits() {
+        Simulation simulation = new Simulation(60 * MINUTE);
+        simulation.run(300);
+        assertEquals(HeartbeatLearner.MAX_INTERVAL, simulation.learner.getInterval());
+        assertEquals(0, simulation.timeouts);
+
+        simulation = new Simulation(MINUTE);
+        simulation.run(100);
+        assertEquals(HeartbeatLearner.MIN_INTERVAL, simulation.learner.getInterval());
+    }
+
+    public void testBacksOffWhenNatTimeoutShrinks() {
+        Simulation simulation = new Simulation(17 * MINUTE);
+        simulation.run(200);
+        simulation.natTimeout = 6 * MINUTE;
+        int timeouts = simulation.timeoutsDuring(200);
+        assertTrue(timeouts > 0);
+        // Backing off multiplicatively only needs a few failures
+        assertTrue("too many timeouts: " + timeouts, timeouts <= 8);
+        assertTrue(simulation.learner.getInterval() <= 6 * MINUTE);
+        assertEquals(0, simulation.timeoutsDuring(100));
+    }
+
+    public void testCeilingExpires() {
+        Simulation simulation = new Simulation(10 * MINUTE);
+        simulation.run(200);
+        assertConverged(simulation, 10 * MINUTE);
+
+        // NAT timeout increases, but the failed interval is not probed again until the ceiling expired
+        simulation.natTimeout = 20 * MINUTE;
+        simulation.run(100);
+        assertTrue(simulation.learner.getInterval() <= 10 * MINUTE);
+
+        simulation.clock.time += HeartbeatLearner.CEILING_EXPIRY;
+        simulation.restart();
+        simulation.run(200);
+        assertConverged(simulation, 20 * MINUTE);
+    }
+
+    public void testPersistsAcrossRestarts() {
+        Simulation simulation = new Simulation(17 * MINUTE);
+        simulation.run(200);
+        int learned = simulation.learner.getInterval();
+        simulation.restart();
+        assertEquals(learned, simulation.learner.getInterval());
+        assertEquals(0, simulation.timeoutsDuring(50));
+    }
+
+    public void testIgnoresAcknowledgementOnBusyConnection() {
+        Simulation simulation = new Simulation(17 * MINUTE);
+        HeartbeatLearner learner = simulation.learner;
+        for (int i = 0; i < 100; i++) {
+            // Other data was received shortly before the heartbeat, so it doesn't tell whether the interval works
+            learner.onHeartbeatAck(1000);
+        }
+        assertEquals(INITIAL_INTERVAL, learner.getInterval());
+    }
+
+    public void testCountsTimeoutOncePerConnection() {
+        Simulation simulation = new Simulation(17 * MINUTE);
+        HeartbeatLearner learner = simulation.learner;
+        learner.onTimeout();
+        int afterFirst = learner.getInterval();
+        learner.onTimeout();
+        learner.onTimeout();
+        assertEquals(afterFirst, learner.getInterval());
+    }
+}
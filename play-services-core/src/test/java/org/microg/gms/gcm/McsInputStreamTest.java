@@ -0,0 +1,75 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.os.Handler;
+
+import junit.framework.TestCase;
+
+import org.microg.gms.gcm.mcs.AppData;
+import org.microg.gms.gcm.mcs.DataMessageStanza;
+import org.microg.gms.gcm.mcs.HeartbeatPing;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import okio.Buffer;
+
+import static org.microg.gms.gcm.McsConstants.MCS_DATA_MESSAGE_STANZA_TAG;
+import static org.microg.gms.gcm.McsConstants.MCS_HEARTBEAT_PING_TAG;
+import static org.microg.gms.gcm.McsConstants.MCS_VERSION_CODE;
+
+public class McsInputStreamTest extends TestCase {
+    private static final int STANZA_COUNT = 10000;
+
+    private static void writeStanza(Buffer buffer, int tag, byte[] bytes) {
+        buffer.writeByte(tag);
+        int size = bytes.length;
+        while ((size & ~0x7F) != 0) {
+            buffer.writeByte((size & 0x7F) | 0x80);
+            size >>>= 7;
+        }
+        buffer.writeByte(size);
+        buffer.write(bytes);
+    }
+
+    private static DataMessageStanza message(int i, int payloadSize) {
+        char[] payload = new char[payloadSize];
+        Arrays.fill(payload, (char) ('a' + i % 26));
+        return new DataMessageStanza.Builder()
+                .from("sender")
+                .category("org.example.app" + (i % 8))
+                .persistent_id("0:" + i)
+                .app_data(Arrays.asList(new AppData.Builder().key("payload").value(new String(payload)).build()))
+                .build();
+    }
+
+    /**
+     * Reads a large synthetic stream of data messages and heartbeats. Every 50th message is larger than an okio segment,
+     * so stanzas span several segments of the source buffer.
+     */
+    public void testReadManyStanzas() throws IOException {
+        Buffer stream = new Buffer();
+        stream.writeByte(MCS_VERSION_CODE);
+        for (int i = 0; i < STANZA_COUNT; i++) {
+            if (i % 10 == 9) {
+                writeStanza(stream, MCS_HEARTBEAT_PING_TAG, HeartbeatPing.ADAPTER.encode(new HeartbeatPing.Builder().stream_id(i).build()));
+            } else {
+                writeStanza(stream, MCS_DATA_MESSAGE_STANZA_TAG, DataMessageStanza.ADAPTER.encode(message(i, i % 50 == 0 ? 20000 : 500)));
+            }
+        }
+
+        McsInputStream input = new McsInputStream(stream.inputStream(), new Handler());
+        assertEquals(MCS_VERSION_CODE, input.getVersion());
+        for (int i = 0; i < STANZA_COUNT; i++) {
+            input.read();
+        }
+        // The stream id is only advanced for stanzas that were decoded successfully
+        assertEquals(STANZA_COUNT, input.getStreamId());
+        assertNull(input.read());
+        assertEquals(STANZA_COUNT, input.getStreamId());
+    }
+}
@@ -38,6 +38,7 @@ const val NAME_CELL = "cell"
 const val EXTRA_URI = "uri"
 const val EXTRA_MESSENGER = "messenger"
 const val EXTRA_REPLY_WHAT = "what"
+const val EXTRA_PROGRESS = "progress"
 
 val Location.elapsedMillis: Long
     get() = LocationCompat.getElapsedRealtimeMillis(this)
@@ -0,0 +1,101 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.location.network
+
+import kotlin.math.abs
+import kotlin.math.cos
+import kotlin.math.sqrt
+
+/**
+ * Clustering of network locations.
+ *
+ * Each location forms a cluster with all other locations closer than its radius. The cluster with the highest total weight
+ * wins. Instead of comparing all pairs of locations, candidates are looked up in a latitude-sorted order and checked using an
+ * equirectangular approximation. The exact distance is only computed if the approximation is too close to the radius to decide.
+ */
+object LocationClustering {
+    fun interface DistanceFunction {
+        fun distance(first: Int, second: Int): Double
+    }
+
+    /**
+     * @param radii the cluster radius around each location in meters
+     * @param distance the exact distance in meters between two locations
+     * @return the indices of the cluster with the highest total weight, starting with the index of the location that formed
+     * the cluster followed by all other members in input order
+     */
+    @JvmStatic
+    fun findBestCluster(latitudes: DoubleArray, longitudes: DoubleArray, radii: DoubleArray, weights: DoubleArray, distance: DistanceFunction): IntArray {
+        val size = latitudes.size
+        if (size == 0) return IntArray(0)
+        val order = (0 until size).sortedBy { latitudes[it] }.toIntArray()
+        val sortedLatitudes = DoubleArray(size) { latitudes[order[it]] }
+        val members = IntArray(size)
+        var bestHead = -1
+        var bestWeight = 0.0
+        for (head in 0 until size) {
+            val count = findMembers(head, latitudes, longitudes, radii, distance, order, sortedLatitudes, members)
+            var weight = weights[head]
+            for (i in 0 until count) weight += weights[members[i]]
+            if (bestHead == -1 || weight > bestWeight) {
+                bestHead = head
+                bestWeight = weight
+            }
+        }
+        val count = findMembers(bestHead, latitudes, longitudes, radii, distance, order, sortedLatitudes, members)
+        return IntArray(count + 1) { if (it == 0) bestHead else members[it - 1] }
+    }
+
+    private fun findMembers(
+        head: Int,
+        latitudes: DoubleArray,
+        longitudes: DoubleArray,
+        radii: DoubleArray,
+        distance: DistanceFunction,
+        order: IntArray,
+        sortedLatitudes: DoubleArray,
+        members: IntArray
+    ): Int {
+        val radius = radii[head]
+        val latitudeRange = radius / MIN_METERS_PER_DEGREE_LATITUDE
+        var start = sortedLatitudes.binarySearch(latitudes[head] - latitudeRange)
+        if (start < 0) start = -start - 1
+        while (start > 0 && sortedLatitudes[start - 1] >= latitudes[head] - latitudeRange) start--
+        var count = 0
+        for (i in start until order.size) {
+            if (sortedLatitudes[i] > latitudes[head] + latitudeRange) break
+            val candidate = order[i]
+            if (candidate == head) continue
+            if (isWithin(head, candidate, radius, latitudes, longitudes, distance)) members[count++] = candidate
+        }
+        members.sort(0, count)
+        return count
+    }
+
+    private fun isWithin(head: Int, candidate: Int, radius: Double, latitudes: DoubleArray, longitudes: DoubleArray, distance: DistanceFunction): Boolean {
+        if (radius > MAX_APPROXIMATION_DISTANCE || abs(latitudes[head]) > MAX_APPROXIMATION_LATITUDE || abs(latitudes[candidate]) > MAX_APPROXIMATION_LATITUDE) {
+            return distance.distance(head, candidate) < radius
+        }
+        val approximate = equirectangularDistance(latitudes[head], longitudes[head], latitudes[candidate], longitudes[candidate])
+        if (approximate < radius * (1 - APPROXIMATION_MARGIN)) return true
+        if (approximate > radius * (1 + APPROXIMATION_MARGIN)) return false
+        return distance.distance(head, candidate) < radius
+    }
+
+    private fun equirectangularDistance(latitude1: Double, longitude1: Double, latitude2: Double, longitude2: Double): Double {
+        var longitudeDelta = abs(longitude1 - longitude2)
+        if (longitudeDelta > 180.0) longitudeDelta = 360.0 - longitudeDelta
+        val x = Math.toRadians(longitudeDelta) * cos(Math.toRadians((latitude1 + latitude2) / 2.0))
+        val y = Math.toRadians(latitude1 - latitude2)
+        return sqrt(x * x + y * y) * EARTH_RADIUS
+    }
+
+    private const val EARTH_RADIUS = 6_371_009.0
+    private const val MIN_METERS_PER_DEGREE_LATITUDE = 110_000.0
+    private const val MAX_APPROXIMATION_DISTANCE = 500_000.0
+    private const val MAX_APPROXIMATION_LATITUDE = 80.0
+    private const val APPROXIMATION_MARGIN = 0.02
+}
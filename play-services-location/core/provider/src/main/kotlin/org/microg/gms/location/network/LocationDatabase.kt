@@ -18,7 +18,6 @@ import android.os.ParcelFileDescriptor
 import android.util.Log
 import androidx.core.content.FileProvider
 import androidx.core.content.contentValuesOf
-import androidx.core.database.getDoubleOrNull
 import androidx.core.database.getStringOrNull
 import androidx.core.os.BundleCompat
 import org.microg.gms.location.NAME_CELL
@@ -27,6 +26,7 @@ import org.microg.gms.location.network.cell.CellDetails
 import org.microg.gms.location.network.cell.isValid
 import org.microg.gms.location.network.wifi.WifiDetails
 import org.microg.gms.location.network.wifi.isRequestable
+import org.microg.gms.location.network.wifi.macClean
 import org.microg.gms.location.network.wifi.macBytes
 import org.microg.gms.utils.toHexString
 import java.io.File
@@ -45,6 +45,13 @@ internal class LocationDatabase(private val context: Context) : SQLiteOpenHelper
     private data class Migration(val apply: String?, val revert: String?, val allowApplyFailure: Boolean, val allowRevertFailure: Boolean)
     private val migrations: Map<Int, List<Migration>>
 
+    // In-memory indices in front of the database tables, lookups and writes must synchronize on the respective index
+    private val cellsIndex = LocationIndex(FIELDS_CACHE_LOCATION)
+    private val cellsLearnIndex = LocationIndex(FIELDS_MID_LOCATION_GET_LEARN)
+    private val cellsPreIndex = LocationIndex(arrayOf(FIELD_TIME))
+    private val wifisIndex = LocationIndex(FIELDS_CACHE_LOCATION)
+    private val wifisLearnIndex = LocationIndex(FIELDS_MID_LOCATION_GET_LEARN)
+
     init {
         val migrations = mutableMapOf<Int, MutableList<Migration>>()
         fun declare(version: Int, apply: String, revert: String? = null, allowFailure: Boolean = false, allowApplyFailure: Boolean = allowFailure, allowRevertFailure: Boolean = allowFailure) {
@@ -138,60 +145,115 @@ internal class LocationDatabase(private val context: Context) : SQLiteOpenHelper
         query(table, columns, selection, selectionArgs, null, null, null)
 
     fun getCellLocation(cell: CellDetails, allowLearned: Boolean = true): Location? {
-        var cursor = readableDatabase.query(TABLE_CELLS, FIELDS_CACHE_LOCATION, CELLS_SELECTION, getCellSelectionArgs(cell))
-        val cellLocation = cursor.getSingleLocation(MAX_CACHE_AGE)
+        val cellLocation = synchronized(cellsIndex) {
+            val slot = cellsIndex.lookup(cell.indexKey1, cell.indexKey2, cell.isIndexable) {
+                readableDatabase.query(TABLE_CELLS, FIELDS_CACHE_LOCATION, CELLS_SELECTION, getCellSelectionArgs(cell))
+            }
+            if (slot >= 0) cellsIndex.getLocation(slot, MAX_CACHE_AGE) else null
+        }
         if (allowLearned) {
-            cursor = readableDatabase.query(TABLE_CELLS_LEARN, FIELDS_MID_LOCATION_GET_LEARN, CELLS_SELECTION, getCellSelectionArgs(cell))
-            try {
-                if (cursor.moveToNext()) {
-                    val badTime = cursor.getLong(8)
-                    val time = cursor.getLong(7)
+            synchronized(cellsLearnIndex) {
+                val slot = cellsLearnIndex.lookup(cell.indexKey1, cell.indexKey2, cell.isIndexable) {
+                    readableDatabase.query(TABLE_CELLS_LEARN, FIELDS_MID_LOCATION_GET_LEARN, CELLS_SELECTION, getCellSelectionArgs(cell))
+                }
+                if (slot >= 0) {
+                    val badTime = cellsLearnIndex.getLong(slot, 8)
+                    val time = cellsLearnIndex.getLong(slot, 7)
                     if (badTime < time - LEARN_BAD_CUTOFF) {
-                        cursor.getCellMidLocation()?.let {
+                        cellsLearnIndex.getCellMidLocation(slot)?.let {
                             if (cellLocation == null || cellLocation == NEGATIVE_CACHE_ENTRY || cellLocation.precision < it.precision) return it
                         }
                     }
                 }
-            } finally {
-                cursor.close()
             }
         }
         if (cellLocation != null) return cellLocation
-        cursor = readableDatabase.query(TABLE_CELLS_PRE, arrayOf(FIELD_TIME), CELLS_PRE_SELECTION, getCellPreSelectionArgs(cell))
-        try {
-            if (cursor.moveToNext()) {
-                if (cursor.getLong(1) > System.currentTimeMillis() - MAX_CACHE_AGE) {
-                    return NEGATIVE_CACHE_ENTRY
-                }
+        synchronized(cellsPreIndex) {
+            val slot = cellsPreIndex.lookup(cell.preIndexKey, 0, cell.mcc != null && cell.mnc != null) {
+                readableDatabase.query(TABLE_CELLS_PRE, arrayOf(FIELD_TIME), CELLS_PRE_SELECTION, getCellPreSelectionArgs(cell))
+            }
+            if (slot >= 0 && cellsPreIndex.getLong(slot, 0) > System.currentTimeMillis() - MAX_CACHE_AGE) {
+                return NEGATIVE_CACHE_ENTRY
             }
-        } finally {
-            cursor.close()
         }
         return null
     }
 
     fun getWifiLocation(wifi: WifiDetails, allowLearned: Boolean = true): Location? {
-        var cursor = readableDatabase.query(TABLE_WIFIS, FIELDS_CACHE_LOCATION, getWifiSelection(wifi))
-        val wifiLocation = cursor.getSingleLocation(MAX_CACHE_AGE)
+        val wifiLocation = synchronized(wifisIndex) {
+            val slot = wifisIndex.lookup(wifi.indexKey, 0) {
+                readableDatabase.query(TABLE_WIFIS, FIELDS_CACHE_LOCATION, getWifiSelection(wifi))
+            }
+            if (slot >= 0) wifisIndex.getLocation(slot, MAX_CACHE_AGE) else null
+        }
         if (allowLearned) {
-            cursor = readableDatabase.query(TABLE_WIFI_LEARN, FIELDS_MID_LOCATION_GET_LEARN, getWifiSelection(wifi))
-            try {
-                if (cursor.moveToNext()) {
-                    val badTime = cursor.getLong(8)
-                    val time = cursor.getLong(7)
+            synchronized(wifisLearnIndex) {
+                val slot = wifisLearnIndex.lookup(wifi.indexKey, 0) {
+                    readableDatabase.query(TABLE_WIFI_LEARN, FIELDS_MID_LOCATION_GET_LEARN, getWifiSelection(wifi))
+                }
+                if (slot >= 0) {
+                    val badTime = wifisLearnIndex.getLong(slot, 8)
+                    val time = wifisLearnIndex.getLong(slot, 7)
                     if (badTime < time - LEARN_BAD_CUTOFF) {
-                        cursor.getWifiMidLocation()?.let {
+                        wifisLearnIndex.getWifiMidLocation(slot)?.let {
                             if (wifiLocation == null || wifiLocation == NEGATIVE_CACHE_ENTRY || wifiLocation.precision < it.precision) return it
                         }
                     }
                 }
-            } finally {
-                cursor.close()
             }
         }
         return wifiLocation
     }
 
+    /**
+     * Batch variant of [getCellLocation], the result contains the location for each cell in order.
+     */
+    fun getCellLocations(cells: List<CellDetails>, allowLearned: Boolean = true): List<Location?> {
+        val indexableCells = cells.filter { it.isIndexable }
+        preloadCells(cellsIndex, TABLE_CELLS, FIELDS_CACHE_LOCATION, indexableCells)
+        if (allowLearned) preloadCells(cellsLearnIndex, TABLE_CELLS_LEARN, FIELDS_MID_LOCATION_GET_LEARN, indexableCells)
+        return cells.map { getCellLocation(it, allowLearned) }
+    }
+
+    /**
+     * Batch variant of [getWifiLocation], the result contains the location for each wifi in order.
+     */
+    fun getWifiLocations(wifis: List<WifiDetails>, allowLearned: Boolean = true): List<Location?> {
+        preloadWifis(wifisIndex, TABLE_WIFIS, FIELDS_CACHE_LOCATION, wifis)
+        if (allowLearned) preloadWifis(wifisLearnIndex, TABLE_WIFI_LEARN, FIELDS_MID_LOCATION_GET_LEARN, wifis)
+        return wifis.map { getWifiLocation(it, allowLearned) }
+    }
+
+    private fun preloadCells(index: LocationIndex, table: String, fields: Array<String>, cells: List<CellDetails>) = synchronized(index) {
+        val missing = cells.filter { !index.contains(it.indexKey1, it.indexKey2) }.distinctBy { it.indexKey1 to it.indexKey2 }
+        for (chunk in missing.chunked(BATCH_SIZE_CELLS)) {
+            val selection = chunk.joinToString(" OR ") { "($CELLS_SELECTION)" }
+            val selectionArgs = chunk.flatMap { getCellSelectionArgs(it).asList() }.toTypedArray()
+            readableDatabase.query(table, FIELDS_CELL + fields, selection, selectionArgs).use { cursor ->
+                while (cursor.moveToNext()) {
+                    val key1 = cellIndexKey1(cursor.getInt(0), cursor.getInt(1), cursor.getInt(2), cursor.getInt(5))
+                    val key2 = cellIndexKey2(cursor.getInt(3), cursor.getLong(4))
+                    index.load(key1, key2, cursor, FIELDS_CELL.size)
+                }
+            }
+            for (cell in chunk) index.loadAbsent(cell.indexKey1, cell.indexKey2)
+        }
+    }
+
+    private fun preloadWifis(index: LocationIndex, table: String, fields: Array<String>, wifis: List<WifiDetails>) = synchronized(index) {
+        val missing = wifis.filter { !index.contains(it.indexKey, 0) }.distinctBy { it.indexKey }
+        for (chunk in missing.chunked(BATCH_SIZE_WIFIS)) {
+            val selection = "$FIELD_MAC IN (${chunk.joinToString(",") { "x'${it.macBytes.toHexString()}'" }})"
+            readableDatabase.query(table, FIELDS_WIFI + fields, selection).use { cursor ->
+                while (cursor.moveToNext()) {
+                    val key = cursor.getBlob(0).fold(0L) { acc, byte -> (acc shl 8) or (byte.toLong() and 0xff) }
+                    index.load(key, 0, cursor, FIELDS_WIFI.size)
+                }
+            }
+            for (wifi in chunk) index.loadAbsent(wifi.indexKey, 0)
+        }
+    }
+
     fun putCellLocation(cell: CellDetails, location: Location) {
         if (!cell.isValid) return
         val cv = contentValuesOf(
@@ -202,7 +264,11 @@ internal class LocationDatabase(private val context: Context) : SQLiteOpenHelper
             FIELD_CID to cell.cid,
             FIELD_PSC to (cell.pscOrPci ?: 0)
         ).apply { putLocation(location) }
-        writableDatabase.insertWithOnConflict(TABLE_CELLS, null, cv, SQLiteDatabase.CONFLICT_REPLACE)
+        synchronized(cellsIndex) {
+            if (writableDatabase.insertWithOnConflict(TABLE_CELLS, null, cv, SQLiteDatabase.CONFLICT_REPLACE) != -1L && cell.isIndexable) {
+                cellsIndex.update(cell.indexKey1, cell.indexKey2, cv, replace = true)
+            }
+        }
     }
 
     fun putWifiLocation(wifi: WifiDetails, location: Location) {
@@ -210,70 +276,72 @@ internal class LocationDatabase(private val context: Context) : SQLiteOpenHelper
         val cv = contentValuesOf(
             FIELD_MAC to wifi.macBytes
         ).apply { putLocation(location) }
-        writableDatabase.insertWithOnConflict(TABLE_WIFIS, null, cv, SQLiteDatabase.CONFLICT_REPLACE)
+        synchronized(wifisIndex) {
+            if (writableDatabase.insertWithOnConflict(TABLE_WIFIS, null, cv, SQLiteDatabase.CONFLICT_REPLACE) != -1L) {
+                wifisIndex.update(wifi.indexKey, 0, cv, replace = true)
+            }
+        }
     }
 
     fun learnCellLocation(cell: CellDetails, location: Location, import: Boolean = false): Boolean {
         if (!cell.isValid) return false
-        val cursor = readableDatabase.query(TABLE_CELLS_LEARN, FIELDS_MID_LOCATION, CELLS_SELECTION, getCellSelectionArgs(cell))
-        var exists = false
-        var isBad = false
-        var midLocation: Location? = null
-        try {
-            if (cursor.moveToNext()) {
-                midLocation = cursor.getMidLocation()
-                exists = midLocation != null
-                isBad = midLocation?.let { it.distanceTo(location) > LEARN_BAD_SIZE_CELL } == true
+        synchronized(cellsLearnIndex) {
+            val slot = cellsLearnIndex.lookup(cell.indexKey1, cell.indexKey2, cell.isIndexable) {
+                readableDatabase.query(TABLE_CELLS_LEARN, FIELDS_MID_LOCATION_GET_LEARN, CELLS_SELECTION, getCellSelectionArgs(cell))
+            }
+            val midLocation = if (slot >= 0) cellsLearnIndex.getMidLocation(slot) else null
+            val exists = midLocation != null
+            val isBad = midLocation?.let { it.distanceTo(location) > LEARN_BAD_SIZE_CELL } == true
+            if (exists && isBad) {
+                val values = ContentValues().apply { putLearnLocation(location, badTime = location.time, import = import) }
+                writableDatabase.update(TABLE_CELLS_LEARN, values, CELLS_SELECTION, getCellSelectionArgs(cell))
+                if (cell.isIndexable) cellsLearnIndex.update(cell.indexKey1, cell.indexKey2, values, replace = false)
+            } else if (!exists) {
+                val values = contentValuesOf(
+                    FIELD_MCC to cell.mcc,
+                    FIELD_MNC to cell.mnc,
+                    FIELD_LAC_TAC to (cell.lac ?: cell.tac ?: 0),
+                    FIELD_TYPE to cell.type.ordinal,
+                    FIELD_CID to cell.cid,
+                    FIELD_PSC to (cell.pscOrPci ?: 0),
+                ).apply { putLearnLocation(location, badTime = 0) }
+                if (writableDatabase.insertWithOnConflict(TABLE_CELLS_LEARN, null, values, SQLiteDatabase.CONFLICT_REPLACE) != -1L && cell.isIndexable) {
+                    cellsLearnIndex.update(cell.indexKey1, cell.indexKey2, values, replace = true)
+                }
+            } else {
+                val values = ContentValues().apply { putLearnLocation(location, midLocation) }
+                writableDatabase.update(TABLE_CELLS_LEARN, values, CELLS_SELECTION, getCellSelectionArgs(cell))
+                if (cell.isIndexable) cellsLearnIndex.update(cell.indexKey1, cell.indexKey2, values, replace = false)
             }
-        } finally {
-            cursor.close()
-        }
-        if (exists && isBad) {
-            val values = ContentValues().apply { putLearnLocation(location, badTime = location.time, import = import) }
-            writableDatabase.update(TABLE_CELLS_LEARN, values, CELLS_SELECTION, getCellSelectionArgs(cell))
-        } else if (!exists) {
-            val values = contentValuesOf(
-                FIELD_MCC to cell.mcc,
-                FIELD_MNC to cell.mnc,
-                FIELD_LAC_TAC to (cell.lac ?: cell.tac ?: 0),
-                FIELD_TYPE to cell.type.ordinal,
-                FIELD_CID to cell.cid,
-                FIELD_PSC to (cell.pscOrPci ?: 0),
-            ).apply { putLearnLocation(location, badTime = 0) }
-            writableDatabase.insertWithOnConflict(TABLE_CELLS_LEARN, null, values, SQLiteDatabase.CONFLICT_REPLACE)
-        } else {
-            val values = ContentValues().apply { putLearnLocation(location, midLocation) }
-            writableDatabase.update(TABLE_CELLS_LEARN, values, CELLS_SELECTION, getCellSelectionArgs(cell))
         }
         return true
     }
 
     fun learnWifiLocation(wifi: WifiDetails, location: Location, import: Boolean = false): Boolean {
         if (!wifi.isRequestable) return false
-        val cursor = readableDatabase.query(TABLE_WIFI_LEARN, FIELDS_MID_LOCATION, getWifiSelection(wifi))
-        var exists = false
-        var isBad = false
-        var midLocation: Location? = null
-        try {
-            if (cursor.moveToNext()) {
-                midLocation = cursor.getMidLocation()
-                exists = midLocation != null
-                isBad = midLocation?.let { it.distanceTo(location) > LEARN_BAD_SIZE_WIFI } == true
+        synchronized(wifisLearnIndex) {
+            val slot = wifisLearnIndex.lookup(wifi.indexKey, 0) {
+                readableDatabase.query(TABLE_WIFI_LEARN, FIELDS_MID_LOCATION_GET_LEARN, getWifiSelection(wifi))
+            }
+            val midLocation = if (slot >= 0) wifisLearnIndex.getMidLocation(slot) else null
+            val exists = midLocation != null
+            val isBad = midLocation?.let { it.distanceTo(location) > LEARN_BAD_SIZE_WIFI } == true
+            if (exists && isBad) {
+                val values = ContentValues().apply { putLearnLocation(location, badTime = location.time, import = import) }
+                writableDatabase.update(TABLE_WIFI_LEARN, values, getWifiSelection(wifi), null)
+                wifisLearnIndex.update(wifi.indexKey, 0, values, replace = false)
+            } else if (!exists) {
+                val values = contentValuesOf(
+                    FIELD_MAC to wifi.macBytes
+                ).apply { putLearnLocation(location, badTime = 0) }
+                if (writableDatabase.insertWithOnConflict(TABLE_WIFI_LEARN, null, values, SQLiteDatabase.CONFLICT_REPLACE) != -1L) {
+                    wifisLearnIndex.update(wifi.indexKey, 0, values, replace = true)
+                }
+            } else {
+                val values = ContentValues().apply { putLearnLocation(location, midLocation) }
+                writableDatabase.update(TABLE_WIFI_LEARN, values, getWifiSelection(wifi), null)
+                wifisLearnIndex.update(wifi.indexKey, 0, values, replace = false)
             }
-        } finally {
-            cursor.close()
-        }
-        if (exists && isBad) {
-            val values = ContentValues().apply { putLearnLocation(location, badTime = location.time, import = import) }
-            writableDatabase.update(TABLE_WIFI_LEARN, values, getWifiSelection(wifi), null)
-        } else if (!exists) {
-            val values = contentValuesOf(
-                FIELD_MAC to wifi.macBytes
-            ).apply { putLearnLocation(location, badTime = 0) }
-            writableDatabase.insertWithOnConflict(TABLE_WIFI_LEARN, null, values, SQLiteDatabase.CONFLICT_REPLACE)
-        } else {
-            val values = ContentValues().apply { putLearnLocation(location, midLocation) }
-            writableDatabase.update(TABLE_WIFI_LEARN, values, getWifiSelection(wifi), null)
         }
         return true
     }
@@ -292,24 +360,29 @@ internal class LocationDatabase(private val context: Context) : SQLiteOpenHelper
             val exportDir = File(context.cacheDir, "location")
             exportDir.mkdir()
             val exportFile = File(exportDir, "$name-${UUID.randomUUID()}.csv.gz")
-            val output = GZIPOutputStream(exportFile.outputStream()).bufferedWriter()
-            output.write("${fieldNames.joinToString(",")},${FIELDS_EXPORT_DATA.joinToString(",")}\n")
-            val cursor = readableDatabase.query(tableName, FIELDS_MID_LOCATION + fieldNames)
-            val indices = fieldNames.map { cursor.getColumnIndexOrThrow(it) }
-            while (cursor.moveToNext()) {
-                val midLocation = midLocationGetter(cursor)
-                if (midLocation != null) {
-                    output.write(indices.joinToString(",") { index ->
-                        if (cursor.getType(index) == Cursor.FIELD_TYPE_BLOB) {
-                            cursor.getBlob(index).toHexString()
-                        } else {
-                            cursor.getStringOrNull(index) ?: ""
+            GZIPOutputStream(exportFile.outputStream()).bufferedWriter().use { output ->
+                output.write("${fieldNames.joinToString(",")},${FIELDS_EXPORT_DATA.joinToString(",")}\n")
+                readableDatabase.query(tableName, FIELDS_MID_LOCATION + fieldNames).use { cursor ->
+                    val indices = IntArray(fieldNames.size) { cursor.getColumnIndexOrThrow(fieldNames[it]) }
+                    while (cursor.moveToNext()) {
+                        val midLocation = midLocationGetter(cursor) ?: continue
+                        for (index in indices) {
+                            if (cursor.getType(index) == Cursor.FIELD_TYPE_BLOB) {
+                                output.write(cursor.getBlob(index).toHexString())
+                            } else {
+                                output.write(cursor.getStringOrNull(index) ?: "")
+                            }
+                            output.write(','.code)
                         }
-                    })
-                    output.write(",${midLocation.latitude},${midLocation.longitude},${if (midLocation.hasAltitude()) midLocation.altitude else ""}\n")
+                        output.write(midLocation.latitude.toString())
+                        output.write(','.code)
+                        output.write(midLocation.longitude.toString())
+                        output.write(','.code)
+                        if (midLocation.hasAltitude()) output.write(midLocation.altitude.toString())
+                        output.write('\n'.code)
+                    }
                 }
             }
-            output.close()
             return FileProvider.getUriForFile(context,"${context.packageName}.microg.location.export", exportFile)
         } catch (e: Exception) {
             Log.w(TAG, e)
@@ -317,7 +390,12 @@ internal class LocationDatabase(private val context: Context) : SQLiteOpenHelper
         return null
     }
 
-    fun importLearned(fileUri: Uri): Int {
+    /**
+     * Import learned locations from a CSV file as created by [exportLearned]. Rows are written in chunks of
+     * [IMPORT_BATCH_SIZE] per transaction, [progress] is invoked with the number of imported rows after each committed
+     * chunk. Rows of a chunk that fails to commit are not counted.
+     */
+    fun importLearned(fileUri: Uri, progress: ((Int) -> Unit)? = null): Int {
         var counter = 0
         try {
             val type = context.contentResolver.getType(fileUri)
@@ -343,34 +421,69 @@ internal class LocationDatabase(private val context: Context) : SQLiteOpenHelper
                     else -> null
                 }
                 if (name != null) {
-                    while (true) {
-                        val line = input.readLine().split(",")
-                        if (line.size != headers.size) break // End of file reached
-                        val location = Location(PROVIDER_CACHE)
-                        location.latitude = line[headers.indexOf(FIELD_LATITUDE)].toDoubleOrNull() ?: continue
-                        location.longitude = line[headers.indexOf(FIELD_LONGITUDE)].toDoubleOrNull() ?: continue
-                        line[headers.indexOf(FIELD_ALTITUDE)].toDoubleOrNull()?.let { location.altitude = it }
-                        location.time = headers.indexOf(FIELD_TIME).takeIf { it != -1 }?.let { line[it] }?.toLongOrNull()?.takeIf { it > 0 } ?: System.currentTimeMillis()
-                        if (name == NAME_WIFI) {
-                            val wifi = WifiDetails(
-                                macAddress = line[headers.indexOf(FIELD_MAC)]
-                            )
-                            if (learnWifiLocation(wifi, location)) counter++
-                        } else  {
-                            val cell = CellDetails(
-                                type = line[headers.indexOf(FIELD_TYPE)].let {
-                                    it.toIntOrNull()?.let { CellDetails.Companion.Type.entries[it] } ?:
-                                    runCatching { CellDetails.Companion.Type.valueOf(it) }.getOrNull()
-                                } ?: continue,
-                                mcc = line[headers.indexOf(FIELD_MCC)].toIntOrNull() ?: continue,
-                                mnc = line[headers.indexOf(FIELD_MNC)].toIntOrNull() ?: continue,
-                                lac = line[headers.indexOf(FIELD_LAC_TAC)].toIntOrNull(),
-                                tac = line[headers.indexOf(FIELD_LAC_TAC)].toIntOrNull(),
-                                cid = line[headers.indexOf(FIELD_CID)].toLongOrNull() ?: continue,
-                                pscOrPci = line[headers.indexOf(FIELD_PSC)].toIntOrNull(),
-                            )
-                            if (learnCellLocation(cell, location)) counter++
+                    val latitudeIndex = headers.indexOf(FIELD_LATITUDE)
+                    val longitudeIndex = headers.indexOf(FIELD_LONGITUDE)
+                    val altitudeIndex = headers.indexOf(FIELD_ALTITUDE)
+                    val timeIndex = headers.indexOf(FIELD_TIME)
+                    val macIndex = headers.indexOf(FIELD_MAC)
+                    val typeIndex = headers.indexOf(FIELD_TYPE)
+                    val mccIndex = headers.indexOf(FIELD_MCC)
+                    val mncIndex = headers.indexOf(FIELD_MNC)
+                    val lacTacIndex = headers.indexOf(FIELD_LAC_TAC)
+                    val cidIndex = headers.indexOf(FIELD_CID)
+                    val pscIndex = headers.indexOf(FIELD_PSC)
+                    val db = writableDatabase
+                    var rowsInTransaction = 0
+                    var importedInTransaction = 0
+                    db.beginTransaction()
+                    try {
+                        while (true) {
+                            if (rowsInTransaction >= IMPORT_BATCH_SIZE) {
+                                db.setTransactionSuccessful()
+                                db.endTransaction()
+                                counter += importedInTransaction
+                                progress?.invoke(counter)
+                                db.beginTransaction()
+                                rowsInTransaction = 0
+                                importedInTransaction = 0
+                            }
+                            val line = input.readLine()?.split(",") ?: break
+                            if (line.size != headers.size) break // End of file reached
+                            rowsInTransaction++
+                            val location = Location(PROVIDER_CACHE)
+                            location.latitude = line[latitudeIndex].toDoubleOrNull() ?: continue
+                            location.longitude = line[longitudeIndex].toDoubleOrNull() ?: continue
+                            line[altitudeIndex].toDoubleOrNull()?.let { location.altitude = it }
+                            location.time = timeIndex.takeIf { it != -1 }?.let { line[it] }?.toLongOrNull()?.takeIf { it > 0 } ?: System.currentTimeMillis()
+                            if (name == NAME_WIFI) {
+                                val wifi = WifiDetails(
+                                    macAddress = line[macIndex]
+                                )
+                                if (learnWifiLocation(wifi, location)) importedInTransaction++
+                            } else  {
+                                val cell = CellDetails(
+                                    type = line[typeIndex].let {
+                                        it.toIntOrNull()?.let { CellDetails.Companion.Type.entries[it] } ?:
+                                        runCatching { CellDetails.Companion.Type.valueOf(it) }.getOrNull()
+                                    } ?: continue,
+                                    mcc = line[mccIndex].toIntOrNull() ?: continue,
+                                    mnc = line[mncIndex].toIntOrNull() ?: continue,
+                                    lac = line[lacTacIndex].toIntOrNull(),
+                                    tac = line[lacTacIndex].toIntOrNull(),
+                                    cid = line[cidIndex].toLongOrNull() ?: continue,
+                                    pscOrPci = line[pscIndex].toIntOrNull(),
+                                )
+                                if (learnCellLocation(cell, location)) importedInTransaction++
+                            }
                         }
+                        db.setTransactionSuccessful()
+                        db.endTransaction()
+                        counter += importedInTransaction
+                    } catch (e: Exception) {
+                        if (db.inTransaction()) db.endTransaction()
+                        // Write-through of the failed transaction may have left the index inconsistent
+                        clearIndices()
+                        throw e
                     }
                 }
             }
@@ -380,6 +493,12 @@ internal class LocationDatabase(private val context: Context) : SQLiteOpenHelper
         return counter
     }
 
+    private fun clearIndices() {
+        for (index in listOf(cellsIndex, cellsLearnIndex, cellsPreIndex, wifisIndex, wifisLearnIndex)) {
+            synchronized(index) { index.clear() }
+        }
+    }
+
     override fun onCreate(db: SQLiteDatabase) {
         migrate(db, 0, CURRENT_VERSION)
     }
@@ -409,6 +528,7 @@ internal class LocationDatabase(private val context: Context) : SQLiteOpenHelper
 
     fun dump(writer: PrintWriter) {
         writer.println("Database: cells(cached)=${DatabaseUtils.queryNumEntries(readableDatabase, TABLE_CELLS)}, cells(learnt)=${DatabaseUtils.queryNumEntries(readableDatabase, TABLE_CELLS_LEARN)}, wifis(cached)=${DatabaseUtils.queryNumEntries(readableDatabase, TABLE_WIFIS)}, wifis(learnt)=${DatabaseUtils.queryNumEntries(readableDatabase, TABLE_WIFI_LEARN)}")
+        writer.println("Database index: cells(cached)=[${synchronized(cellsIndex) { cellsIndex.toString() }}], cells(learnt)=[${synchronized(cellsLearnIndex) { cellsLearnIndex.toString() }}], wifis(cached)=[${synchronized(wifisIndex) { wifisIndex.toString() }}], wifis(learnt)=[${synchronized(wifisLearnIndex) { wifisLearnIndex.toString() }}]")
     }
 }
 
@@ -465,6 +585,10 @@ private const val LEARN_BAD_SIZE_WIFI = 200
 
 private const val LEARN_BAD_CUTOFF = 1000L * 60 * 60 * 24 * 14
 
+private const val BATCH_SIZE_CELLS = 100 // 6 arguments per cell, SQLite allows up to 999
+private const val BATCH_SIZE_WIFIS = 500
+private const val IMPORT_BATCH_SIZE = 5000
+
 private const val CELLS_SELECTION = "$FIELD_MCC = ? AND $FIELD_MNC = ? AND $FIELD_TYPE = ? AND $FIELD_LAC_TAC = ? AND $FIELD_CID = ? AND $FIELD_PSC = ?"
 private const val CELLS_PRE_SELECTION = "$FIELD_MCC = ? AND $FIELD_MNC = ?"
 
@@ -506,35 +630,46 @@ private fun getCellPreSelectionArgs(cell: CellDetails): Array<String> {
     )
 }
 
-private fun Cursor.getSingleLocation(maxAge: Long): Location? {
-    return try {
-        if (moveToNext()) {
-            getLocation(maxAge)
-        } else {
-            null
-        }
-    } finally {
-        close()
-    }
-}
+private val WifiDetails.indexKey: Long
+    get() = macClean.toLong(16)
+
+private val CellDetails.isIndexable: Boolean
+    get() = mcc in 0..0xffff && mnc in 0..0xffff && (pscOrPci ?: 0) in 0..0xffffff && (lac ?: tac ?: 0) in 0..0xffffff && cid in 0L..0xffffffffffL
+
+private fun cellIndexKey1(mcc: Int, mnc: Int, type: Int, psc: Int): Long =
+    ((mcc.toLong() and 0xffff) shl 48) or ((mnc.toLong() and 0xffff) shl 32) or ((type.toLong() and 0xff) shl 24) or (psc.toLong() and 0xffffff)
+
+private fun cellIndexKey2(lac: Int, cid: Long): Long =
+    ((lac.toLong() and 0xffffff) shl 40) or (cid and 0xffffffffffL)
+
+private val CellDetails.indexKey1: Long
+    get() = cellIndexKey1(mcc ?: 0, mnc ?: 0, type.ordinal, pscOrPci ?: 0)
 
-private fun Cursor.getLocation(maxAge: Long): Location? {
-    if (getLong(5) > System.currentTimeMillis() - maxAge) {
-        if (getDouble(2) == 0.0) return NEGATIVE_CACHE_ENTRY
+private val CellDetails.indexKey2: Long
+    get() = cellIndexKey2(lac ?: tac ?: 0, cid ?: 0L)
+
+private val CellDetails.preIndexKey: Long
+    get() = ((mcc ?: 0).toLong() shl 32) or ((mnc ?: 0).toLong() and 0xffffffffL)
+
+private fun LocationIndex.getLocation(slot: Int, maxAge: Long): Location? {
+    if (getLong(slot, 5) > System.currentTimeMillis() - maxAge) {
+        if (getDouble(slot, 2) == 0.0) return NEGATIVE_CACHE_ENTRY
         return Location(PROVIDER_CACHE).apply {
-            latitude = getDouble(0)
-            longitude = getDouble(1)
-            accuracy = getDouble(2).toFloat()
-            getDoubleOrNull(3)?.let { altitude = it }
-            verticalAccuracy = getDoubleOrNull(4)?.toFloat()
-            time = getLong(5)
-            precision = getDouble(6)
+            latitude = getDouble(slot, 0)
+            longitude = getDouble(slot, 1)
+            accuracy = getDouble(slot, 2).toFloat()
+            getDoubleOrNull(slot, 3)?.let { altitude = it }
+            verticalAccuracy = getDoubleOrNull(slot, 4)?.toFloat()
+            time = getLong(slot, 5)
+            precision = getDouble(slot, 6)
         }
     }
     return null
 }
 
-private fun Cursor.getMidLocation(
+private inline fun getMidLocation(
+    isNull: (Int) -> Boolean,
+    getDouble: (Int) -> Double,
     maxAge: Long = Long.MAX_VALUE,
     baseAccuracy: Double = 0.0,
     accuracyFactor: Double = 0.0,
@@ -543,12 +678,12 @@ private fun Cursor.getMidLocation(
     basePrecision: Double = 0.0,
     precisionFactor: Double = 0.0
 ): Location? {
-    if (maxAge == Long.MAX_VALUE || getLong(7) > System.currentTimeMillis() - maxAge) {
+    if (maxAge == Long.MAX_VALUE || getDouble(7).toLong() > System.currentTimeMillis() - maxAge) {
         val high = Location(PROVIDER_CACHE).apply { latitude = getDouble(0); longitude = getDouble(2) }
         if (!isNull(4)) high.altitude = getDouble(4)
         val low = Location(PROVIDER_CACHE).apply { latitude = getDouble(1); longitude = getDouble(3) }
         if (!isNull(5)) low.altitude = getDouble(5)
-        val count = getInt(6)
+        val count = getDouble(6).toInt()
         val computedAccuracy = baseAccuracy / (1 + (accuracyFactor * (count - 1).toDouble()))
         val computedVerticalAccuracy = baseVerticalAccuracy / (1 + (verticalAccuracyFactor * (count - 1).toDouble()))
         return Location(PROVIDER_CACHE).apply {
@@ -574,7 +709,9 @@ private fun Cursor.getMidLocation(
     return null
 }
 
-private fun Cursor.getWifiMidLocation() = getMidLocation(
+private inline fun getWifiMidLocation(isNull: (Int) -> Boolean, getDouble: (Int) -> Double) = getMidLocation(
+    isNull,
+    getDouble,
     MAX_LEARN_AGE,
     baseAccuracy = LEARN_BASE_ACCURACY_WIFI,
     accuracyFactor = LEARN_ACCURACY_FACTOR_WIFI,
@@ -584,7 +721,9 @@ private fun Cursor.getWifiMidLocation() = getMidLocation(
     precisionFactor = LEARN_PRECISION_FACTOR_WIFI
 )
 
-private fun Cursor.getCellMidLocation() = getMidLocation(
+private inline fun getCellMidLocation(isNull: (Int) -> Boolean, getDouble: (Int) -> Double) = getMidLocation(
+    isNull,
+    getDouble,
     MAX_LEARN_AGE,
     baseAccuracy = LEARN_BASE_ACCURACY_CELL,
     accuracyFactor = LEARN_ACCURACY_FACTOR_CELL,
@@ -594,6 +733,16 @@ private fun Cursor.getCellMidLocation() = getMidLocation(
     precisionFactor = LEARN_PRECISION_FACTOR_CELL
 )
 
+private fun Cursor.getWifiMidLocation() = getWifiMidLocation({ isNull(it) }, { getDouble(it) })
+
+private fun Cursor.getCellMidLocation() = getCellMidLocation({ isNull(it) }, { getDouble(it) })
+
+private fun LocationIndex.getMidLocation(slot: Int) = getMidLocation({ isNull(slot, it) }, { getDouble(slot, it) })
+
+private fun LocationIndex.getWifiMidLocation(slot: Int) = getWifiMidLocation({ isNull(slot, it) }, { getDouble(slot, it) })
+
+private fun LocationIndex.getCellMidLocation(slot: Int) = getCellMidLocation({ isNull(slot, it) }, { getDouble(slot, it) })
+
 private var Location.highLocation: Location?
     get() = extras?.let { BundleCompat.getParcelable(it, EXTRA_HIGH_LOCATION, Location::class.java) }
     set(value) { extras += EXTRA_HIGH_LOCATION to value }
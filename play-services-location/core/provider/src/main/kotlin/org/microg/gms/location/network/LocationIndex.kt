@@ -0,0 +1,212 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.location.network
+
+import android.content.ContentValues
+import android.database.Cursor
+
+/**
+ * Memory-resident index of database rows, keyed by a pair of longs.
+ *
+ * Rows are stored packed as doubles in a single array using open addressing with linear probing. Rows that do not exist
+ * in the database are recorded as absent, so that networks without known location don't hit the database again.
+ *
+ * The index is not thread-safe, callers must synchronize on it.
+ */
+internal class LocationIndex(private val fields: Array<String>, private val maxSize: Int = DEFAULT_MAX_SIZE) {
+    private val width = fields.size
+    private var capacity = INITIAL_CAPACITY
+    private var keys1 = LongArray(capacity)
+    private var keys2 = LongArray(capacity)
+    private var states = ByteArray(capacity)
+    // One additional slot at the end is used as scratch for rows that can't be indexed
+    private var values = DoubleArray((capacity + 1) * width)
+
+    var size = 0
+        private set
+    var hits = 0L
+        private set
+    var misses = 0L
+        private set
+
+    private val scratch: Int
+        get() = capacity
+
+    private fun slotOf(key1: Long, key2: Long): Int {
+        var hash = key1 * -0x61c8864680b583ebL + key2
+        hash = (hash xor (hash ushr 32)) * -0x4b47d5b1b3d3e8f5L
+        hash = hash xor (hash ushr 29)
+        return (hash and (capacity - 1).toLong()).toInt()
+    }
+
+    private fun find(key1: Long, key2: Long): Int {
+        var slot = slotOf(key1, key2)
+        while (states[slot] != STATE_EMPTY) {
+            if (keys1[slot] == key1 && keys2[slot] == key2) return slot
+            slot = (slot + 1) and (capacity - 1)
+        }
+        return -1
+    }
+
+    private fun insert(key1: Long, key2: Long): Int {
+        if (size >= maxSize) clear()
+        if ((size + 1) * 2 > capacity) grow()
+        var slot = slotOf(key1, key2)
+        while (states[slot] != STATE_EMPTY) {
+            if (keys1[slot] == key1 && keys2[slot] == key2) return slot
+            slot = (slot + 1) and (capacity - 1)
+        }
+        keys1[slot] = key1
+        keys2[slot] = key2
+        states[slot] = STATE_ABSENT
+        size++
+        return slot
+    }
+
+    private fun grow() {
+        val oldCapacity = capacity
+        val oldKeys1 = keys1
+        val oldKeys2 = keys2
+        val oldStates = states
+        val oldValues = values
+        capacity = oldCapacity * 2
+        keys1 = LongArray(capacity)
+        keys2 = LongArray(capacity)
+        states = ByteArray(capacity)
+        values = DoubleArray((capacity + 1) * width)
+        size = 0
+        for (oldSlot in 0 until oldCapacity) {
+            if (oldStates[oldSlot] == STATE_EMPTY) continue
+            val slot = insert(oldKeys1[oldSlot], oldKeys2[oldSlot])
+            states[slot] = oldStates[oldSlot]
+            System.arraycopy(oldValues, oldSlot * width, values, slot * width, width)
+        }
+    }
+
+    fun clear() {
+        capacity = INITIAL_CAPACITY
+        keys1 = LongArray(capacity)
+        keys2 = LongArray(capacity)
+        states = ByteArray(capacity)
+        values = DoubleArray((capacity + 1) * width)
+        size = 0
+    }
+
+    private fun readRow(slot: Int, cursor: Cursor, offset: Int = 0) {
+        for (i in 0 until width) {
+            values[slot * width + i] = if (cursor.isNull(offset + i)) Double.NaN else cursor.getDouble(offset + i)
+        }
+    }
+
+    fun contains(key1: Long, key2: Long): Boolean = find(key1, key2) >= 0
+
+    /**
+     * Index the current row of [cursor], starting at column [offset].
+     */
+    fun load(key1: Long, key2: Long, cursor: Cursor, offset: Int) {
+        val slot = insert(key1, key2)
+        readRow(slot, cursor, offset)
+        states[slot] = STATE_PRESENT
+    }
+
+    /**
+     * Record that there is no row for the given key, unless the key is already indexed.
+     */
+    fun loadAbsent(key1: Long, key2: Long) {
+        if (find(key1, key2) < 0) insert(key1, key2)
+    }
+
+    /**
+     * Find the row for the given key, loading it using [query] if it is not yet indexed. The cursor returned by [query]
+     * must contain the fields of this index in order.
+     *
+     * If [indexable] is false, the row is always loaded from the database into a scratch slot that is only valid until the
+     * next call.
+     *
+     * @return the slot of the row or -1 if no such row exists.
+     */
+    fun lookup(key1: Long, key2: Long, indexable: Boolean = true, query: () -> Cursor): Int {
+        if (indexable) {
+            val slot = find(key1, key2)
+            if (slot >= 0) {
+                hits++
+                return if (states[slot] == STATE_PRESENT) slot else -1
+            }
+            misses++
+        }
+        query().use { cursor ->
+            if (!cursor.moveToNext()) {
+                if (indexable) insert(key1, key2)
+                return -1
+            }
+            val slot = if (indexable) insert(key1, key2) else scratch
+            readRow(slot, cursor)
+            if (indexable) states[slot] = STATE_PRESENT
+            return slot
+        }
+    }
+
+    /**
+     * Write-through the given values. If [replace] is true, fields not contained in [values] are reset to null, otherwise
+     * they are taken from the current row, if it is indexed. If the current row is not indexed, the row is dropped from
+     * the index, so that it is read from the database again on next lookup.
+     */
+    fun update(key1: Long, key2: Long, values: ContentValues, replace: Boolean) {
+        val existing = find(key1, key2)
+        if (!replace && (existing < 0 || states[existing] != STATE_PRESENT)) {
+            if (existing >= 0) remove(existing)
+            return
+        }
+        val slot = if (existing >= 0) existing else insert(key1, key2)
+        for (i in 0 until width) {
+            if (values.containsKey(fields[i])) {
+                this.values[slot * width + i] = (values.get(fields[i]) as? Number)?.toDouble() ?: Double.NaN
+            } else if (replace) {
+                this.values[slot * width + i] = Double.NaN
+            }
+        }
+        states[slot] = STATE_PRESENT
+    }
+
+    private fun remove(slot: Int) {
+        // Re-insert the remainder of the probe sequence to keep it intact
+        states[slot] = STATE_EMPTY
+        size--
+        var next = (slot + 1) and (capacity - 1)
+        while (states[next] != STATE_EMPTY) {
+            val state = states[next]
+            states[next] = STATE_EMPTY
+            size--
+            val target = insert(keys1[next], keys2[next])
+            states[target] = state
+            if (target != next) System.arraycopy(values, next * width, values, target * width, width)
+            next = (next + 1) and (capacity - 1)
+        }
+    }
+
+    fun isNull(slot: Int, field: Int): Boolean = values[slot * width + field].isNaN()
+
+    fun getDouble(slot: Int, field: Int): Double {
+        val value = values[slot * width + field]
+        return if (value.isNaN()) 0.0 else value
+    }
+
+    fun getDoubleOrNull(slot: Int, field: Int): Double? = values[slot * width + field].takeIf { !it.isNaN() }
+
+    fun getLong(slot: Int, field: Int): Long = getDouble(slot, field).toLong()
+
+    fun getInt(slot: Int, field: Int): Int = getDouble(slot, field).toInt()
+
+    override fun toString(): String = "size=$size hits=$hits miss=$misses"
+
+    companion object {
+        private const val INITIAL_CAPACITY = 256
+        private const val DEFAULT_MAX_SIZE = 16384
+        private const val STATE_EMPTY: Byte = 0
+        private const val STATE_ABSENT: Byte = 1
+        private const val STATE_PRESENT: Byte = 2
+    }
+}
@@ -24,7 +24,14 @@ import androidx.core.location.LocationRequestCompat
 import androidx.core.os.bundleOf
 import androidx.lifecycle.LifecycleService
 import androidx.lifecycle.lifecycleScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import kotlinx.coroutines.withTimeout
 import org.microg.gms.location.*
 import org.microg.gms.location.network.cell.CellDetails
@@ -48,6 +55,9 @@ class NetworkLocationService : LifecycleService(), WifiDetailsCallback, CellDeta
     private var wifiDetailsSource: WifiDetailsSource? = null
     private var cellDetailsSource: CellDetailsSource? = null
     private val ichnaea by lazy { IchnaeaServiceClient(this) }
+    @GuardedBy("cellRequestsInFlight")
+    private val cellRequestsInFlight = HashMap<CellDetails, Deferred<Location?>>()
+    private val cellRequestsSemaphore = Semaphore(MAX_PARALLEL_CELL_REQUESTS)
     private val database by lazy { LocationDatabase(this) }
     private val movingWifiHelper by lazy { MovingWifiHelper(this) }
     private val settings by lazy { LocationSettings(this) }
@@ -250,7 +260,19 @@ class NetworkLocationService : LifecycleService(), WifiDetailsCallback, CellDeta
                     }
                     DIRECTION_IMPORT -> {
                         val uri = IntentCompat.getParcelableExtra(intent, EXTRA_URI, Uri::class.java)
-                        val counter = uri?.let { database.importLearned(it) } ?: 0
+                        val counter = uri?.let {
+                            database.importLearned(it) { progress ->
+                                callback?.send(Message.obtain().apply {
+                                    what = replyWhat
+                                    arg1 = progress
+                                    data = bundleOf(
+                                        EXTRA_DIRECTION to DIRECTION_IMPORT,
+                                        EXTRA_URI to uri,
+                                        EXTRA_PROGRESS to true,
+                                    )
+                                })
+                            }
+                        } ?: 0
                         callback?.send(Message.obtain().apply {
                             what = replyWhat
                             arg1 = counter
@@ -318,10 +340,12 @@ class NetworkLocationService : LifecycleService(), WifiDetailsCallback, CellDeta
     }
 
     private suspend fun queryWifiLocationFromDatabase(wifis: List<WifiDetails>): Location? =
-        queryLocationFromRetriever(wifis, 1000.0) { database.getWifiLocation(it, settings.wifiLearning) }
+        queryLocationFromRetriever(wifis, 1000.0) { database.getWifiLocations(it, settings.wifiLearning) }
 
-    private suspend fun queryCellLocationFromDatabase(cells: List<CellDetails>): Location? =
-        queryLocationFromRetriever(cells, 50000.0) { it.location ?: database.getCellLocation(it, settings.cellLearning) }
+    private fun queryCellLocationsFromDatabase(cells: List<CellDetails>): List<Location?> {
+        val databaseLocations = database.getCellLocations(cells.filter { it.location == null }, settings.cellLearning).iterator()
+        return cells.map { it.location ?: databaseLocations.next() }
+    }
 
     private val NetworkDetails.signalStrengthBounded: Int
         get() = (signalStrength ?: -100).coerceIn(-100, -10)
@@ -332,19 +356,17 @@ class NetworkLocationService : LifecycleService(), WifiDetailsCallback, CellDeta
     private val NetworkDetails.weight: Double
         get() = min(1.0, sqrt(2000.0 / ageBounded)) / signalStrengthBounded.toDouble().pow(2)
 
-    private fun <T: NetworkDetails> queryLocationFromRetriever(data: List<T>, maxClusterDistance: Double = 0.0, retriever: (T) -> Location?): Location? {
-        val locations = data.mapNotNull { detail -> retriever(detail)?.takeIf { it != NEGATIVE_CACHE_ENTRY }?.let { detail to it } }
+    private fun <T: NetworkDetails> queryLocationFromRetriever(data: List<T>, maxClusterDistance: Double = 0.0, retriever: (List<T>) -> List<Location?>): Location? {
+        val locations = data.zip(retriever(data)).mapNotNull { (detail, location) -> location?.takeIf { it != NEGATIVE_CACHE_ENTRY }?.let { detail to it } }
         if (locations.isNotEmpty()) {
-            val clusters = locations.map { mutableListOf(it) }
-            for (cellLocation in locations) {
-                for (cluster in clusters) {
-                    if (cluster.first() == cellLocation) continue;
-                    if (cluster.first().second.distanceTo(cellLocation.second) < max(cluster.first().second.accuracy * 2.0, maxClusterDistance)) {
-                        cluster.add(cellLocation)
-                    }
-                }
-            }
-            val cluster = clusters.maxBy { it.sumOf { it.second.precision } }
+            val cluster = LocationClustering.findBestCluster(
+                latitudes = DoubleArray(locations.size) { locations[it].second.latitude },
+                longitudes = DoubleArray(locations.size) { locations[it].second.longitude },
+                radii = DoubleArray(locations.size) { max(locations[it].second.accuracy * 2.0, maxClusterDistance) },
+                weights = DoubleArray(locations.size) { locations[it].second.precision }
+            ) { first, second ->
+                locations[first].second.distanceTo(locations[second].second).toDouble()
+            }.map { locations[it] }
 
             return Location(PROVIDER_CACHE).apply {
                 latitude = cluster.weightedAverage { it.second.latitude to it.first.weight }
@@ -439,14 +461,32 @@ class NetworkLocationService : LifecycleService(), WifiDetailsCallback, CellDeta
     }
 
     private suspend fun queryCellLocation(cells: List<CellDetails>): Location? {
-        val candidate = queryCellLocationFromDatabase(cells)
+        val locations = queryCellLocationsFromDatabase(cells).toMutableList()
+        val candidate = queryLocationFromRetriever(cells, 50000.0) { locations }
         if ((candidate?.precision ?: 0.0) > 1.0) return candidate
-        val cellsToUpdate = cells.filter { it.location == null && database.getCellLocation(it, settings.cellLearning) == null }
-        for (cell in cellsToUpdate) {
-            queryIchnaeaCellLocation(cell)
+        val indicesToUpdate = cells.indices.filter { locations[it] == null }
+        if (indicesToUpdate.isEmpty()) return candidate
+        val ichnaeaLocations = coroutineScope {
+            indicesToUpdate.map { async { queryIchnaeaCellLocationDeduplicated(cells[it]) } }.awaitAll()
         }
-        // Try again after fetching records from internet
-        return queryCellLocationFromDatabase(cells)
+        // Try again with records fetched from internet
+        indicesToUpdate.forEachIndexed { i, index -> locations[index] = ichnaeaLocations[i] }
+        return queryLocationFromRetriever(cells, 50000.0) { locations }
+    }
+
+    private suspend fun queryIchnaeaCellLocationDeduplicated(cell: CellDetails): Location? {
+        // Overlapping scans share the request for the same cell
+        val key = cell.copy(timestamp = null, signalStrength = null)
+        val deferred = synchronized(cellRequestsInFlight) {
+            cellRequestsInFlight.getOrPut(key) {
+                lifecycleScope.async(start = CoroutineStart.LAZY) {
+                    cellRequestsSemaphore.withPermit { queryIchnaeaCellLocation(cell) }
+                }.also { deferred ->
+                    deferred.invokeOnCompletion { synchronized(cellRequestsInFlight) { cellRequestsInFlight.remove(key, deferred) } }
+                }
+            }
+        }
+        return deferred.await()?.let { Location(it) }
     }
 
     private suspend fun queryIchnaeaCellLocation(cell: CellDetails): Location? {
@@ -455,15 +495,13 @@ class NetworkLocationService : LifecycleService(), WifiDetailsCallback, CellDeta
                 val ichnaeaCandidate = ichnaea.retrieveSingleCellLocation(cell) { cell, location ->
                     if (settings.cellCaching) database.putCellLocation(cell, location)
                 } ?: NEGATIVE_CACHE_ENTRY
-                if (settings.cellCaching) {
-                    if (ichnaeaCandidate == NEGATIVE_CACHE_ENTRY) {
-                        database.putCellLocation(cell, NEGATIVE_CACHE_ENTRY)
-                        return null
-                    } else {
-                        ichnaeaCandidate.time = System.currentTimeMillis()
-                        database.putCellLocation(cell, ichnaeaCandidate)
-                        return ichnaeaCandidate
-                    }
+                if (ichnaeaCandidate == NEGATIVE_CACHE_ENTRY) {
+                    if (settings.cellCaching) database.putCellLocation(cell, NEGATIVE_CACHE_ENTRY)
+                    return null
+                } else {
+                    ichnaeaCandidate.time = System.currentTimeMillis()
+                    if (settings.cellCaching) database.putCellLocation(cell, ichnaeaCandidate)
+                    return ichnaeaCandidate
                 }
             } catch (e: Exception) {
                 Log.w(TAG, "Failed retrieving location for cell network", e)
@@ -617,5 +655,6 @@ class NetworkLocationService : LifecycleService(), WifiDetailsCallback, CellDeta
         const val MAX_LOCAL_WIFI_AGE_MS = 60_000_000L // 1 minute
         const val MAX_LOCAL_WIFI_SCAN_AGE_MS = 600_000_000L // 10 minutes
         const val MOVING_WIFI_HIGH_POWER_ACCURACY = 100f
+        const val MAX_PARALLEL_CELL_REQUESTS = 4
     }
 }
\ No newline at end of file
@@ -0,0 +1,199 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.location.network.ichnaea
+
+import android.content.Context
+import android.database.DatabaseUtils
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+import android.location.Location
+import android.os.Bundle
+import android.util.Log
+import androidx.core.content.contentValuesOf
+import androidx.core.database.getDoubleOrNull
+import androidx.core.database.getStringOrNull
+import org.microg.gms.location.network.NEGATIVE_CACHE_ENTRY
+import org.microg.gms.location.network.toHexString
+import org.microg.gms.location.network.verticalAccuracy
+import java.io.PrintWriter
+
+/**
+ * Persistent second tier for the Ichnaea request cache, so that responses survive process death.
+ *
+ * Entries expire after [MAX_AGE], negative entries already after [NEGATIVE_MAX_AGE], as a missing result may only be
+ * temporary. The oldest entries are evicted once the estimated size of all entries exceeds [MAX_SIZE].
+ */
+internal class IchnaeaResponseCache(context: Context) : SQLiteOpenHelper(context, "ichnaea-cache.db", null, CURRENT_VERSION) {
+    private var totalSize = -1L
+    private var hits = 0L
+    private var misses = 0L
+    private var expirations = 0L
+    private var evictions = 0L
+
+    override fun onCreate(db: SQLiteDatabase) {
+        db.execSQL("CREATE TABLE $TABLE_RESPONSES($FIELD_HASH BLOB PRIMARY KEY, $FIELD_NEGATIVE INTEGER NOT NULL, $FIELD_LATITUDE REAL, $FIELD_LONGITUDE REAL, $FIELD_ACCURACY REAL, $FIELD_ALTITUDE REAL, $FIELD_ALTITUDE_ACCURACY REAL, $FIELD_FALLBACK TEXT, $FIELD_TIME INTEGER NOT NULL, $FIELD_SIZE INTEGER NOT NULL);")
+        db.execSQL("CREATE INDEX ${TABLE_RESPONSES}_time_index ON $TABLE_RESPONSES($FIELD_TIME);")
+    }
+
+    override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+        // Only a cache, so just start over
+        db.execSQL("DROP TABLE IF EXISTS $TABLE_RESPONSES;")
+        onCreate(db)
+    }
+
+    override fun onDowngrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+        onUpgrade(db, oldVersion, newVersion)
+    }
+
+    override fun onOpen(db: SQLiteDatabase) {
+        super.onOpen(db)
+        if (!db.isReadOnly) {
+            val now = System.currentTimeMillis()
+            expirations += db.delete(TABLE_RESPONSES, "$FIELD_TIME < ? OR ($FIELD_NEGATIVE != 0 AND $FIELD_TIME < ?)", arrayOf((now - MAX_AGE).toString(), (now - NEGATIVE_MAX_AGE).toString()))
+        }
+    }
+
+    private fun ensureTotalSize(db: SQLiteDatabase) {
+        if (totalSize < 0) totalSize = DatabaseUtils.longForQuery(db, "SELECT TOTAL($FIELD_SIZE) FROM $TABLE_RESPONSES;", null)
+    }
+
+    /**
+     * @return the cached location, [NEGATIVE_CACHE_ENTRY] if the request is known to have no result or null if not cached.
+     */
+    @Synchronized
+    fun get(hash: ByteArray, provider: String): Location? {
+        try {
+            val cursor = writableDatabase.query(TABLE_RESPONSES, FIELDS_LOCATION, getHashSelection(hash), null, null, null, null)
+            cursor.use {
+                if (!cursor.moveToNext()) {
+                    misses++
+                    return null
+                }
+                val negative = cursor.getInt(0) != 0
+                if (cursor.getLong(7) < System.currentTimeMillis() - if (negative) NEGATIVE_MAX_AGE else MAX_AGE) {
+                    misses++
+                    expire(hash)
+                    return null
+                }
+                hits++
+                if (negative) return NEGATIVE_CACHE_ENTRY
+                return Location(provider).apply {
+                    latitude = cursor.getDouble(1)
+                    longitude = cursor.getDouble(2)
+                    cursor.getDoubleOrNull(3)?.let { accuracy = it.toFloat() }
+                    cursor.getDoubleOrNull(4)?.let { altitude = it }
+                    if (hasAltitude()) verticalAccuracy = cursor.getDoubleOrNull(5)?.toFloat()
+                    cursor.getStringOrNull(6)?.let { extras = (extras ?: Bundle()).apply { putString(IchnaeaServiceClient.LOCATION_EXTRA_FALLBACK, it) } }
+                    time = cursor.getLong(7)
+                }
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed reading from cache", e)
+            return null
+        }
+    }
+
+    private fun expire(hash: ByteArray) {
+        val db = writableDatabase
+        ensureTotalSize(db)
+        val size = DatabaseUtils.longForQuery(db, "SELECT TOTAL($FIELD_SIZE) FROM $TABLE_RESPONSES WHERE ${getHashSelection(hash)};", null)
+        if (db.delete(TABLE_RESPONSES, getHashSelection(hash), null) > 0) {
+            totalSize -= size
+            expirations++
+        }
+    }
+
+    @Synchronized
+    fun put(hash: ByteArray, location: Location) {
+        try {
+            val db = writableDatabase
+            ensureTotalSize(db)
+            val negative = location == NEGATIVE_CACHE_ENTRY
+            val fallback = if (negative) null else location.extras?.getString(IchnaeaServiceClient.LOCATION_EXTRA_FALLBACK)
+            val size = ENTRY_BASE_SIZE + hash.size + (fallback?.length ?: 0)
+            val values = contentValuesOf(
+                FIELD_HASH to hash,
+                FIELD_NEGATIVE to if (negative) 1 else 0,
+                FIELD_FALLBACK to fallback,
+                FIELD_TIME to System.currentTimeMillis(),
+                FIELD_SIZE to size
+            )
+            if (!negative) {
+                values.put(FIELD_LATITUDE, location.latitude)
+                values.put(FIELD_LONGITUDE, location.longitude)
+                if (location.hasAccuracy()) values.put(FIELD_ACCURACY, location.accuracy)
+                if (location.hasAltitude()) values.put(FIELD_ALTITUDE, location.altitude)
+                location.verticalAccuracy?.let { values.put(FIELD_ALTITUDE_ACCURACY, it) }
+            }
+            db.beginTransaction()
+            try {
+                val previousSize = DatabaseUtils.longForQuery(db, "SELECT TOTAL($FIELD_SIZE) FROM $TABLE_RESPONSES WHERE ${getHashSelection(hash)};", null)
+                if (db.insertWithOnConflict(TABLE_RESPONSES, null, values, SQLiteDatabase.CONFLICT_REPLACE) != -1L) {
+                    totalSize += size - previousSize
+                }
+                if (totalSize > MAX_SIZE) evict(db)
+                db.setTransactionSuccessful()
+            } finally {
+                db.endTransaction()
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed writing to cache", e)
+            totalSize = -1
+        }
+    }
+
+    private fun evict(db: SQLiteDatabase) {
+        // Evict the oldest entries until we are below the low watermark, to not evict on every put
+        var cutoffTime = -1L
+        var evictedSize = 0L
+        var evictedCount = 0
+        db.query(TABLE_RESPONSES, arrayOf(FIELD_TIME, FIELD_SIZE), null, null, null, null, "$FIELD_TIME ASC").use { cursor ->
+            while (totalSize - evictedSize > MAX_SIZE * 3 / 4 && cursor.moveToNext()) {
+                cutoffTime = cursor.getLong(0)
+                evictedSize += cursor.getLong(1)
+                evictedCount++
+            }
+        }
+        if (cutoffTime >= 0) {
+            evictions += db.delete(TABLE_RESPONSES, "$FIELD_TIME <= ?", arrayOf(cutoffTime.toString()))
+            totalSize = DatabaseUtils.longForQuery(db, "SELECT TOTAL($FIELD_SIZE) FROM $TABLE_RESPONSES;", null)
+            Log.d(TAG, "Evicted $evictedCount entries from cache")
+        }
+    }
+
+    @Synchronized
+    fun dump(writer: PrintWriter) {
+        val entries = try {
+            DatabaseUtils.queryNumEntries(readableDatabase, TABLE_RESPONSES)
+        } catch (e: Exception) {
+            -1
+        }
+        writer.println("Ichnaea persistent cache entries=$entries size=$totalSize hits=$hits miss=$misses expired=$expirations evicts=$evictions")
+    }
+
+    companion object {
+        private const val TAG = "IchnaeaLocation"
+        private const val CURRENT_VERSION = 1
+        private const val MAX_AGE = 1000L * 60 * 60 * 24 * 7 // 7 days
+        private const val NEGATIVE_MAX_AGE = 1000L * 60 * 60 // 1 hour
+        private const val MAX_SIZE = 1024L * 1024 // 1 MB
+        private const val ENTRY_BASE_SIZE = 80
+        private const val TABLE_RESPONSES = "responses"
+        private const val FIELD_HASH = "hash"
+        private const val FIELD_NEGATIVE = "neg"
+        private const val FIELD_LATITUDE = "lat"
+        private const val FIELD_LONGITUDE = "lon"
+        private const val FIELD_ACCURACY = "acc"
+        private const val FIELD_ALTITUDE = "alt"
+        private const val FIELD_ALTITUDE_ACCURACY = "alt_acc"
+        private const val FIELD_FALLBACK = "fallback"
+        private const val FIELD_TIME = "time"
+        private const val FIELD_SIZE = "size"
+        private val FIELDS_LOCATION = arrayOf(FIELD_NEGATIVE, FIELD_LATITUDE, FIELD_LONGITUDE, FIELD_ACCURACY, FIELD_ALTITUDE, FIELD_ALTITUDE_ACCURACY, FIELD_FALLBACK, FIELD_TIME)
+
+        private fun getHashSelection(hash: ByteArray) = "$FIELD_HASH = x'${hash.toHexString()}'"
+    }
+}
@@ -40,6 +40,7 @@ class IchnaeaServiceClient(private val context: Context) {
     private val settings = LocationSettings(context)
     private val omitables = LinkedList<String>()
     private val cache = LruCache<String, Location>(REQUEST_CACHE_SIZE)
+    private val persistentCache by lazy { IchnaeaResponseCache(context) }
     private val start = SystemClock.elapsedRealtime()
 
     private val hasTelephony by lazy {
@@ -112,9 +113,12 @@ class IchnaeaServiceClient(private val context: Context) {
     ): Location? {
         val requestHash = request.hash()
         if (requestHash != null) {
-            val locationFromCache = cache[requestHash.toHexString()]
+            val locationFromCache = cache[requestHash.toHexString()] ?: persistentCache.get(requestHash, PROVIDER)?.also {
+                cache[requestHash.toHexString()] = it
+            }
             if (locationFromCache == NEGATIVE_CACHE_ENTRY) return null
-            if (locationFromCache != null) return Location(locationFromCache)
+            // The cached location may be days old, but it is still the location for the current request
+            if (locationFromCache != null) return Location(locationFromCache).apply { time = System.currentTimeMillis() }
         }
         val response = rawGeoLocate(request)
         Log.d(TAG, "$request -> $response")
@@ -153,6 +157,7 @@ class IchnaeaServiceClient(private val context: Context) {
         }
         if (requestHash != null) {
             cache[requestHash.toHexString()] = if (location == NEGATIVE_CACHE_ENTRY) NEGATIVE_CACHE_ENTRY else Location(location)
+            persistentCache.put(requestHash, location)
         }
         if (location == NEGATIVE_CACHE_ENTRY) return null
         return location
@@ -227,6 +232,7 @@ class IchnaeaServiceClient(private val context: Context) {
     fun dump(writer: PrintWriter) {
         writer.println("Ichnaea start=${start.formatRealtime()} omitables=${omitables.size}")
         writer.println("Ichnaea request cache size=${cache.size()} hits=${cache.hitCount()} miss=${cache.missCount()} puts=${cache.putCount()} evicts=${cache.evictionCount()}")
+        persistentCache.dump(writer)
     }
 
     private operator fun <K : Any, V : Any> LruCache<K, V>.set(key: K, value: V) {
@@ -0,0 +1,105 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.location.network;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class LocationClusteringTest extends TestCase {
+    private static final double EARTH_RADIUS = 6_371_009.0;
+
+    private static double haversine(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+    /**
+     * The previous quadratic clustering in NetworkLocationService
+     */
+    private static int[] referenceBestCluster(double[] latitudes, double[] longitudes, double[] radii, double[] weights, LocationClustering.DistanceFunction distance) {
+        List<List<Integer>> clusters = new ArrayList<>();
+        for (int i = 0; i < latitudes.length; i++) {
+            List<Integer> cluster = new ArrayList<>();
+            cluster.add(i);
+            clusters.add(cluster);
+        }
+        for (int location = 0; location < latitudes.length; location++) {
+            for (List<Integer> cluster : clusters) {
+                int head = cluster.get(0);
+                if (head == location) continue;
+                if (distance.distance(head, location) < radii[head]) cluster.add(location);
+            }
+        }
+        List<Integer> best = null;
+        double bestWeight = 0.0;
+        for (List<Integer> cluster : clusters) {
+            double weight = 0.0;
+            for (int member : cluster) weight += weights[member];
+            if (best == null || weight > bestWeight) {
+                best = cluster;
+                bestWeight = weight;
+            }
+        }
+        int[] result = new int[best.size()];
+        for (int i = 0; i < result.length; i++) result[i] = best.get(i);
+        return result;
+    }
+
+    private void assertSameClusters(long seed, int count, double centerLatitude, double centerLongitude, double spread, double minRadius, double maxRadius) {
+        Random random = new Random(seed);
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+        double[] radii = new double[count];
+        double[] weights = new double[count];
+        for (int i = 0; i < count; i++) {
+            latitudes[i] = centerLatitude + (random.nextDouble() - 0.5) * spread;
+            longitudes[i] = centerLongitude + (random.nextDouble() - 0.5) * spread;
+            if (longitudes[i] > 180.0) longitudes[i] -= 360.0;
+            if (longitudes[i] < -180.0) longitudes[i] += 360.0;
+            radii[i] = minRadius + random.nextDouble() * (maxRadius - minRadius);
+            weights[i] = random.nextInt(4) == 0 ? 1.0 : 0.2 + random.nextDouble();
+        }
+        LocationClustering.DistanceFunction distance = (first, second) -> haversine(latitudes[first], longitudes[first], latitudes[second], longitudes[second]);
+        int[] expected = referenceBestCluster(latitudes, longitudes, radii, weights, distance);
+        int[] actual = LocationClustering.findBestCluster(latitudes, longitudes, radii, weights, distance);
+        Assert.assertArrayEquals("seed " + seed, expected, actual);
+    }
+
+    public void testEmpty() {
+        Assert.assertEquals(0, LocationClustering.findBestCluster(new double[0], new double[0], new double[0], new double[0], (first, second) -> 0.0).length);
+    }
+
+    public void testWifiScans() {
+        for (long seed = 0; seed < 200; seed++) {
+            assertSameClusters(seed, 100, 52.52, 13.40, 0.03, 1000.0, 2000.0);
+        }
+    }
+
+    public void testCellScans() {
+        for (long seed = 0; seed < 200; seed++) {
+            assertSameClusters(seed, 20, -33.86, 151.21, 2.0, 50000.0, 120000.0);
+        }
+    }
+
+    public void testAntimeridian() {
+        for (long seed = 0; seed < 100; seed++) {
+            assertSameClusters(seed, 60, 64.0, 179.99, 0.05, 1000.0, 3000.0);
+        }
+    }
+
+    public void testPolar() {
+        for (long seed = 0; seed < 100; seed++) {
+            assertSameClusters(seed, 60, 85.0, 0.0, 0.5, 1000.0, 20000.0);
+        }
+    }
+}
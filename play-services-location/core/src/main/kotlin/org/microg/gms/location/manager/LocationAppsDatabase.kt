@@ -7,14 +7,37 @@ package org.microg.gms.location.manager
 
 import android.content.ContentValues
 import android.content.Context
+import android.content.Intent
 import android.database.sqlite.SQLiteDatabase
 import android.database.sqlite.SQLiteOpenHelper
 import android.location.Location
+import android.os.Handler
+import android.os.Looper
 import android.util.Log
+import androidx.annotation.GuardedBy
 import androidx.core.content.contentValuesOf
 import androidx.core.database.getIntOrNull
+import java.io.PrintWriter
+
+class LocationAppsDatabase(private val context: Context) : SQLiteOpenHelper(context, "geoapps.db", null, 2) {
+    private val handler = Handler(Looper.getMainLooper())
+    private val flushRunnable = Runnable { flush() }
+
+    @GuardedBy("forceCoarseCache")
+    private val forceCoarseCache = mutableMapOf<String, Boolean>()
+
+    // Usage and last location are only written back to the database periodically, as they are updated on every location
+    // delivered to a client.
+    private val pendingLock = Any()
+    @GuardedBy("pendingLock")
+    private val pendingUsage = mutableMapOf<String, Long>()
+    @GuardedBy("pendingLock")
+    private val pendingLocations = mutableMapOf<String, Location>()
+    @GuardedBy("pendingLock")
+    private var flushScheduled = false
+    private var flushes = 0L
+    private var flushedEntries = 0L
 
-class LocationAppsDatabase(context: Context) : SQLiteOpenHelper(context, "geoapps.db", null, 2) {
     override fun onCreate(db: SQLiteDatabase) {
         db.execSQL("CREATE TABLE IF NOT EXISTS $TABLE_APPS($FIELD_PACKAGE TEXT NOT NULL, $FIELD_TIME INTEGER NOT NULL, $FIELD_FORCE_COARSE INTEGER);")
         db.execSQL("CREATE TABLE IF NOT EXISTS $TABLE_APPS_LAST_LOCATION($FIELD_PACKAGE TEXT NOT NULL, $FIELD_TIME INTEGER NOT NULL, $FIELD_LATITUDE REAL NOT NULL, $FIELD_LONGITUDE REAL NOT NULL, $FIELD_ACCURACY REAL NOT NULL, $FIELD_PROVIDER TEXT NOT NULL);")
@@ -22,52 +45,132 @@ class LocationAppsDatabase(context: Context) : SQLiteOpenHelper(context, "geoapp
         db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS ${TABLE_APPS_LAST_LOCATION}_index ON ${TABLE_APPS_LAST_LOCATION}(${FIELD_PACKAGE});")
     }
 
-    private fun insertOrUpdateApp(packageName: String, vararg pairs: Pair<String, Any?>) {
+    private fun insertOrUpdateApp(db: SQLiteDatabase, packageName: String, vararg pairs: Pair<String, Any?>) {
         val values = contentValuesOf(FIELD_PACKAGE to packageName, *pairs)
-        if (writableDatabase.insertWithOnConflict(TABLE_APPS, null, values, SQLiteDatabase.CONFLICT_IGNORE) < 0) {
-            writableDatabase.update(TABLE_APPS, values, "$FIELD_PACKAGE = ?", arrayOf(packageName))
+        if (db.insertWithOnConflict(TABLE_APPS, null, values, SQLiteDatabase.CONFLICT_IGNORE) < 0) {
+            db.update(TABLE_APPS, values, "$FIELD_PACKAGE = ?", arrayOf(packageName))
         }
-        close()
     }
 
     fun noteAppUsage(packageName: String) {
-        insertOrUpdateApp(packageName, FIELD_TIME to System.currentTimeMillis())
+        synchronized(pendingLock) {
+            pendingUsage[packageName] = System.currentTimeMillis()
+            scheduleFlush()
+        }
     }
 
     fun getForceCoarse(packageName: String): Boolean {
-        return readableDatabase.query(TABLE_APPS, arrayOf(FIELD_FORCE_COARSE), "$FIELD_PACKAGE = ?", arrayOf(packageName), null, null, null, "1").run {
-            try {
-                if (moveToNext()) {
-                    getIntOrNull(0) == 1
-                } else {
-                    false
+        // Read under the lock, so a concurrent update or invalidation can't be overwritten with a stale value
+        return synchronized(forceCoarseCache) {
+            forceCoarseCache.getOrPut(packageName) {
+                readableDatabase.query(TABLE_APPS, arrayOf(FIELD_FORCE_COARSE), "$FIELD_PACKAGE = ?", arrayOf(packageName), null, null, null, "1").run {
+                    try {
+                        if (moveToNext()) {
+                            getIntOrNull(0) == 1
+                        } else {
+                            false
+                        }
+                    } finally {
+                        close()
+                    }
                 }
-            } finally {
-                close()
             }
         }
     }
 
     fun setForceCoarse(packageName: String, forceCoarse: Boolean) {
-        insertOrUpdateApp(packageName, FIELD_FORCE_COARSE to (if (forceCoarse) 1 else 0))
+        insertOrUpdateApp(writableDatabase, packageName, FIELD_FORCE_COARSE to (if (forceCoarse) 1 else 0))
+        synchronized(forceCoarseCache) {
+            forceCoarseCache[packageName] = forceCoarse
+        }
+        // The settings UI runs in a different process, so notify the instance used by the location manager.
+        val intent = Intent(ACTION_APP_SETTINGS_CHANGED)
+        intent.`package` = context.packageName
+        intent.putExtra(EXTRA_PACKAGE_NAME, packageName)
+        context.sendBroadcast(intent)
+    }
+
+    /**
+     * Drop the cached settings for [packageName] or for all apps if null, so they are read from the database again.
+     */
+    fun invalidateSettings(packageName: String? = null) {
+        synchronized(forceCoarseCache) {
+            if (packageName == null) forceCoarseCache.clear() else forceCoarseCache.remove(packageName)
+        }
     }
 
     fun noteAppLocation(packageName: String, location: Location?) {
-        noteAppUsage(packageName)
-        if (location == null) return
-        val values = contentValuesOf(
-            FIELD_PACKAGE to packageName,
-            FIELD_TIME to location.time,
-            FIELD_LATITUDE to location.latitude,
-            FIELD_LONGITUDE to location.longitude,
-            FIELD_ACCURACY to location.accuracy,
-            FIELD_PROVIDER to location.provider
-        )
-        writableDatabase.insertWithOnConflict(TABLE_APPS_LAST_LOCATION, null, values, SQLiteDatabase.CONFLICT_REPLACE)
-        close()
+        synchronized(pendingLock) {
+            pendingUsage[packageName] = System.currentTimeMillis()
+            if (location != null) pendingLocations[packageName] = location
+            scheduleFlush()
+        }
+    }
+
+    @GuardedBy("pendingLock")
+    private fun scheduleFlush() {
+        if (flushScheduled) return
+        flushScheduled = true
+        handler.postDelayed(flushRunnable, FLUSH_DELAY)
+    }
+
+    /**
+     * Write all pending app usage and location updates to the database in a single transaction.
+     */
+    fun flush() {
+        val usage: Map<String, Long>
+        val locations: Map<String, Location>
+        synchronized(pendingLock) {
+            handler.removeCallbacks(flushRunnable)
+            flushScheduled = false
+            if (pendingUsage.isEmpty() && pendingLocations.isEmpty()) return
+            usage = pendingUsage.toMap()
+            locations = pendingLocations.toMap()
+            pendingUsage.clear()
+            pendingLocations.clear()
+        }
+        try {
+            val db = writableDatabase
+            db.beginTransaction()
+            try {
+                for ((packageName, time) in usage) {
+                    insertOrUpdateApp(db, packageName, FIELD_TIME to time)
+                }
+                for ((packageName, location) in locations) {
+                    val values = contentValuesOf(
+                        FIELD_PACKAGE to packageName,
+                        FIELD_TIME to location.time,
+                        FIELD_LATITUDE to location.latitude,
+                        FIELD_LONGITUDE to location.longitude,
+                        FIELD_ACCURACY to location.accuracy,
+                        FIELD_PROVIDER to location.provider
+                    )
+                    db.insertWithOnConflict(TABLE_APPS_LAST_LOCATION, null, values, SQLiteDatabase.CONFLICT_REPLACE)
+                }
+                db.setTransactionSuccessful()
+            } finally {
+                db.endTransaction()
+            }
+            flushes++
+            flushedEntries += usage.size + locations.size
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed writing app usage", e)
+        }
+    }
+
+    override fun close() {
+        flush()
+        super.close()
+    }
+
+    fun dump(writer: PrintWriter) {
+        val cached = synchronized(forceCoarseCache) { forceCoarseCache.size }
+        val pending = synchronized(pendingLock) { pendingUsage.size + pendingLocations.size }
+        writer.println("App settings cache: size=$cached, app usage: pending=$pending flushes=$flushes flushed=$flushedEntries")
     }
 
     fun listAppsByAccessTime(limit: Int = Int.MAX_VALUE): List<Pair<String, Long>> {
+        flush()
         val res = arrayListOf<Pair<String, Long>>()
         readableDatabase.query(TABLE_APPS, arrayOf(FIELD_PACKAGE, FIELD_TIME), null, null, null, null, "$FIELD_TIME DESC", "$limit").apply {
             while (moveToNext()) {
@@ -79,6 +182,7 @@ class LocationAppsDatabase(context: Context) : SQLiteOpenHelper(context, "geoapp
     }
 
     fun getAppLocation(packageName: String): Location? {
+        flush()
         return readableDatabase.query(
             TABLE_APPS_LAST_LOCATION,
             arrayOf(FIELD_LATITUDE, FIELD_LONGITUDE, FIELD_ACCURACY, FIELD_TIME, FIELD_PROVIDER),
@@ -118,6 +222,9 @@ class LocationAppsDatabase(context: Context) : SQLiteOpenHelper(context, "geoapp
     }
 
     companion object {
+        const val ACTION_APP_SETTINGS_CHANGED = "org.microg.gms.location.manager.ACTION_APP_SETTINGS_CHANGED"
+        const val EXTRA_PACKAGE_NAME = "package_name"
+        private const val FLUSH_DELAY = 30_000L
         private const val TABLE_APPS = "apps"
         private const val TABLE_APPS_LAST_LOCATION = "app_location"
         private const val FIELD_PACKAGE = "package"
@@ -0,0 +1,126 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.location.manager
+
+import android.os.SystemClock
+import com.google.android.gms.location.LocationResult
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+
+/**
+ * Delivers location results to a single client, so that a slow client does not delay delivery to other clients.
+ *
+ * The queue is bounded: if the client can't keep up, the oldest pending results are dropped.
+ */
+class LocationDeliveryQueue(
+    private val scope: CoroutineScope,
+    private val deliver: (LocationResult) -> Unit,
+    private val onFailure: (Exception) -> Unit,
+    private val capacity: Int = DEFAULT_CAPACITY
+) {
+    private val queue = ArrayDeque<Pair<LocationResult, Long>>()
+    private var draining = false
+    private var accepting = true
+    private var finished = false
+    private var onDrained: (() -> Unit)? = null
+
+    private var delivered = 0L
+    private var dropped = 0L
+    private var failed = 0L
+    private var totalLatency = 0L
+    private var maxLatency = 0L
+
+    fun offer(result: LocationResult) {
+        synchronized(this) {
+            if (!accepting) return
+            if (queue.size >= capacity) {
+                queue.removeFirst()
+                dropped++
+            }
+            queue.addLast(result to SystemClock.elapsedRealtime())
+            startDraining()
+        }
+    }
+
+    /**
+     * Stop accepting new results. Results already queued are still delivered, afterwards [action] is invoked.
+     */
+    fun finish(action: () -> Unit = {}) {
+        synchronized(this) {
+            if (finished) return
+            finished = true
+            accepting = false
+            onDrained = action
+            startDraining()
+        }
+    }
+
+    /**
+     * Stop accepting new results and drop results that were not yet delivered.
+     */
+    fun discard() {
+        synchronized(this) {
+            finished = true
+            accepting = false
+            onDrained = null
+            dropped += queue.size
+            queue.clear()
+        }
+    }
+
+    private fun startDraining() {
+        if (draining) return
+        draining = true
+        scope.launch(Dispatchers.IO) { drain() }
+    }
+
+    private fun drain() {
+        while (true) {
+            var action: (() -> Unit)? = null
+            val next = synchronized(this) {
+                queue.removeFirstOrNull().also {
+                    if (it == null) {
+                        draining = false
+                        action = onDrained
+                        onDrained = null
+                    }
+                }
+            }
+            if (next == null) {
+                action?.invoke()
+                return
+            }
+            val (result, enqueued) = next
+            try {
+                deliver(result)
+            } catch (e: Exception) {
+                synchronized(this) {
+                    failed++
+                    accepting = false
+                    queue.clear()
+                }
+                onFailure(e)
+                continue
+            }
+            val latency = SystemClock.elapsedRealtime() - enqueued
+            synchronized(this) {
+                delivered++
+                totalLatency += latency
+                if (latency > maxLatency) maxLatency = latency
+            }
+        }
+    }
+
+    override fun toString(): String = synchronized(this) {
+        val averageLatency = if (delivered > 0) totalLatency / delivered else 0
+        "delivered=$delivered dropped=$dropped failed=$failed queued=${queue.size} latency avg=${averageLatency}ms max=${maxLatency}ms"
+    }
+
+    companion object {
+        private const val DEFAULT_CAPACITY = 16
+    }
+}
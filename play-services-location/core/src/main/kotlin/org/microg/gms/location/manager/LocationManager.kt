@@ -9,8 +9,10 @@ import android.Manifest
 import android.app.Activity
 import android.app.PendingIntent
 import android.app.PendingIntent.FLAG_UPDATE_CURRENT
+import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
+import android.content.IntentFilter
 import android.content.pm.PackageManager
 import android.location.Location
 import android.location.LocationManager.*
@@ -59,6 +61,12 @@ class LocationManager(private val context: Context, override val lifecycle: Life
     private var lastGpsLocation: Location? = null
     private var lastNetworkLocation: Location? = null
 
+    private val appSettingsChangedReceiver = object : BroadcastReceiver() {
+        override fun onReceive(context: Context, intent: Intent) {
+            database.invalidateSettings(intent.getStringExtra(LocationAppsDatabase.EXTRA_PACKAGE_NAME))
+        }
+    }
+
     private var currentGpsInterval: Long = -1
     private var currentNetworkInterval: Long = -1
 
@@ -160,6 +168,7 @@ class LocationManager(private val context: Context, override val lifecycle: Life
         val intent = Intent(context, LocationManagerService::class.java)
         intent.action = LocationManagerService.ACTION_REPORT_LOCATION
         coarsePendingIntent = PendingIntentCompat.getService(context, 0, intent, FLAG_UPDATE_CURRENT, true)
+        ContextCompat.registerReceiver(context, appSettingsChangedReceiver, IntentFilter(LocationAppsDatabase.ACTION_APP_SETTINGS_CHANGED), ContextCompat.RECEIVER_NOT_EXPORTED)
         lastLocationCapsule.start()
         requestManager.start()
     }
@@ -172,6 +181,8 @@ class LocationManager(private val context: Context, override val lifecycle: Life
         requestManager.stop()
         lastLocationCapsule.stop()
         deviceOrientationManager.stop()
+        context.unregisterReceiver(appSettingsChangedReceiver)
+        database.flush()
 
         if (context.hasNetworkLocationServiceBuiltIn()) {
             val intent = Intent(ACTION_NETWORK_LOCATION_SERVICE)
@@ -366,6 +377,7 @@ class LocationManager(private val context: Context, override val lifecycle: Life
         writer.println("Interval: gps=${if (currentGpsInterval==Long.MAX_VALUE) "off" else currentGpsInterval.formatDuration()} network=${if (currentNetworkInterval==Long.MAX_VALUE) "off" else currentNetworkInterval.formatDuration()}")
         writer.println("Network location: built-in=${context.hasNetworkLocationServiceBuiltIn()} system=$boundToSystemNetworkLocation")
         requestManager.dump(writer)
+        database.dump(writer)
         deviceOrientationManager.dump(writer)
     }
 
@@ -24,7 +24,9 @@ import com.google.android.gms.location.*
 import com.google.android.gms.location.Granularity.*
 import com.google.android.gms.location.Priority.*
 import com.google.android.gms.location.internal.ClientIdentity
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
 import org.microg.gms.location.GranularityUtil
@@ -42,6 +44,7 @@ class LocationRequestManager(private val context: Context, override val lifecycl
     private val binderRequests = mutableMapOf<IBinder, LocationRequestHolder>()
     private val pendingIntentRequests = mutableMapOf<PendingIntent, LocationRequestHolder>()
     private val cacheManager by lazy { IntentCacheManager.create<LocationManagerService, LocationRequestHolderParcelable>(context, CACHE_TYPE) }
+    private val deliveryQueues = mutableMapOf<LocationRequestHolder, LocationDeliveryQueue>()
     var priority: @Priority Int = PRIORITY_PASSIVE
     var granularity: @Granularity Int = GRANULARITY_PERMISSION_LEVEL
         private set
@@ -90,12 +93,12 @@ class LocationRequestManager(private val context: Context, override val lifecycl
                     var effectiveGranularity = it.effectiveGranularity
                     if (effectiveGranularity == GRANULARITY_FINE && database.getForceCoarse(it.clientIdentity.packageName) && !clientIdentity.isSelfUser()) effectiveGranularity = GRANULARITY_COARSE
                     val lastLocation = lastLocationCapsule.getLocation(effectiveGranularity, request.maxUpdateAgeMillis)
-                    if (lastLocation != null) it.processNewLocation(lastLocation)
+                    if (lastLocation != null) deliverNewLocation(it, lastLocation)
                 }
                 binderRequests[binder] = startedHolder
                 binder.linkToDeath(this, 0)
             } catch (e: Exception) {
-                holder?.cancel()
+                holder?.let { cancel(it, removed = true) }
             }
             recalculateRequests()
         }
@@ -108,7 +111,7 @@ class LocationRequestManager(private val context: Context, override val lifecycl
             oldBinder.unlinkToDeath(this, 0)
             val holder = binderRequests.remove(oldBinder)
             if (holder != null) {
-                holder.cancel()
+                cancel(holder, removed = true)
                 recalculateRequests()
             }
         }
@@ -123,7 +126,7 @@ class LocationRequestManager(private val context: Context, override val lifecycl
                     var effectiveGranularity = it.effectiveGranularity
                     if (effectiveGranularity == GRANULARITY_FINE && database.getForceCoarse(it.clientIdentity.packageName) && !clientIdentity.isSelfUser()) effectiveGranularity = GRANULARITY_COARSE
                     val lastLocation = lastLocationCapsule.getLocation(effectiveGranularity, request.maxUpdateAgeMillis)
-                    if (lastLocation != null) it.processNewLocation(lastLocation)
+                    if (lastLocation != null) deliverNewLocation(it, lastLocation)
                 }
             } catch (e: Exception) {
                 // Ignore
@@ -136,7 +139,11 @@ class LocationRequestManager(private val context: Context, override val lifecycl
     suspend fun remove(pendingIntent: PendingIntent) {
         lock.withLock {
             cacheManager.removeIf { it.pendingIntent == pendingIntent }
-            if (pendingIntentRequests.remove(pendingIntent) != null) recalculateRequests()
+            val holder = pendingIntentRequests.remove(pendingIntent)
+            if (holder != null) {
+                cancel(holder, removed = true)
+                recalculateRequests()
+            }
         }
         notifyRequestDetailsUpdated()
     }
@@ -150,7 +157,7 @@ class LocationRequestManager(private val context: Context, override val lifecycl
                 if (effectiveGranularity == GRANULARITY_FINE && database.getForceCoarse(holder.clientIdentity.packageName) && !holder.clientIdentity.isSelfUser()) effectiveGranularity = GRANULARITY_COARSE
                 val location = lastLocationCapsule.getLocation(effectiveGranularity)
                 postProcessor.process(location, effectiveGranularity, holder.clientIdentity.isGoogle(context))?.let {
-                    if (holder.processNewLocation(it)) {
+                    if (deliverNewLocation(holder, it)) {
                         if (!holder.clientIdentity.isSelfUser()) database.noteAppLocation(holder.clientIdentity.packageName, it)
                         updated.add(key)
                     }
@@ -168,19 +175,14 @@ class LocationRequestManager(private val context: Context, override val lifecycl
             val (pendingIntentsToRemove, pendingIntentsUpdated) = processNewLocation(lastLocationCapsule, pendingIntentRequests)
             for (pendingIntent in pendingIntentsToRemove) {
                 cacheManager.removeIf { it.pendingIntent == pendingIntent }
-                pendingIntentRequests.remove(pendingIntent)
+                pendingIntentRequests.remove(pendingIntent)?.let { cancel(it) }
             }
             for (pendingIntent in pendingIntentsUpdated) {
                 cacheManager.add(pendingIntentRequests[pendingIntent]!!.asParcelable()) { it.pendingIntent == pendingIntent }
             }
             val (bindersToRemove, _) = processNewLocation(lastLocationCapsule, binderRequests)
             for (binder in bindersToRemove) {
-                try {
-                    binderRequests[binder]?.cancel()
-                } catch (e: Exception) {
-                    // Ignore
-                }
-                binderRequests.remove(binder)
+                binderRequests.remove(binder)?.let { cancel(it) }
             }
             if (pendingIntentsToRemove.isNotEmpty() || bindersToRemove.isNotEmpty()) {
                 recalculateRequests()
@@ -189,8 +191,78 @@ class LocationRequestManager(private val context: Context, override val lifecycl
         notifyRequestDetailsUpdated()
     }
 
+    /**
+     * Hand the location to the holder's delivery queue. The actual delivery to the client happens asynchronously outside
+     * the request lock. If the holder batches locations, delivery is deferred until the batch is complete.
+     */
+    private fun deliverNewLocation(holder: LocationRequestHolder, location: Location): Boolean {
+        if (!holder.processNewLocation(location)) return false
+        val result = holder.takeResult()
+        if (result != null) {
+            holder.batchFlushJob?.cancel()
+            holder.batchFlushJob = null
+            enqueue(holder, result)
+        } else if (holder.batchFlushJob == null) {
+            val delayMillis = holder.batchDeadline - SystemClock.elapsedRealtime()
+            holder.batchFlushJob = lifecycleScope.launch {
+                delay(delayMillis)
+                lock.withLock {
+                    holder.batchFlushJob = null
+                    if (holder !in binderRequests.values && holder !in pendingIntentRequests.values) return@withLock
+                    holder.takeResult(force = true)?.let { enqueue(holder, it) }
+                }
+            }
+        }
+        holder.checkUpdatesPending()
+        return true
+    }
+
+    private fun enqueue(holder: LocationRequestHolder, result: LocationResult) {
+        val queue = deliveryQueues.getOrPut(holder) {
+            LocationDeliveryQueue(lifecycleScope, holder::deliver) { e ->
+                Log.w(TAG, "Failed delivering location to ${holder.workSource}: ${e.message}")
+                holder.deliveryFailed = true
+                lifecycleScope.launchWhenStarted { check() }
+            }
+        }
+        queue.offer(result)
+    }
+
+    private fun cancel(holder: LocationRequestHolder, removed: Boolean = false) {
+        holder.batchFlushJob?.cancel()
+        holder.batchFlushJob = null
+        if (!removed && holder.isExpired) {
+            // Request ended on its own, deliver the remaining batch and cancel only after all pending locations were delivered
+            holder.takeResult(force = true)?.let { enqueue(holder, it) }
+            val queue = deliveryQueues.remove(holder)
+            if (queue != null) queue.finish { holder.cancel() } else holder.cancel()
+        } else {
+            // Removed by the client, binder died or delivery failed: the client must not receive any further locations
+            deliveryQueues.remove(holder)?.discard()
+            holder.cancel()
+        }
+    }
+
     private fun recalculateRequests() {
         val merged = binderRequests.values + pendingIntentRequests.values
+        if (deliveryQueues.isNotEmpty()) {
+            val active = merged.toSet()
+            val iterator = deliveryQueues.iterator()
+            while (iterator.hasNext()) {
+                val (holder, queue) = iterator.next()
+                if (holder !in active) {
+                    holder.batchFlushJob?.cancel()
+                    holder.batchFlushJob = null
+                    if (holder.isExpired) {
+                        holder.takeResult(force = true)?.let { queue.offer(it) }
+                        queue.finish()
+                    } else {
+                        queue.discard()
+                    }
+                    iterator.remove()
+                }
+            }
+        }
         val newGranularity = merged.maxOfOrNull { it.effectiveGranularity } ?: GRANULARITY_PERMISSION_LEVEL
         val newPriority = merged.minOfOrNull { it.effectivePriority } ?: PRIORITY_PASSIVE
         val newIntervalMillis = merged.minOfOrNull { it.intervalMillis } ?: Long.MAX_VALUE
@@ -252,7 +324,7 @@ class LocationRequestManager(private val context: Context, override val lifecycl
             }
             for (pendingIntent in pendingIntentsToRemove) {
                 cacheManager.removeIf { it.pendingIntent == pendingIntent }
-                pendingIntentRequests.remove(pendingIntent)
+                pendingIntentRequests.remove(pendingIntent)?.let { cancel(it) }
             }
             val bindersToRemove = mutableSetOf<IBinder>()
             for ((key, holder) in binderRequests) {
@@ -264,12 +336,7 @@ class LocationRequestManager(private val context: Context, override val lifecycl
                 }
             }
             for (binder in bindersToRemove) {
-                try {
-                    binderRequests[binder]?.cancel()
-                } catch (e: Exception) {
-                    // Ignore
-                }
-                binderRequests.remove(binder)
+                binderRequests.remove(binder)?.let { cancel(it) }
             }
             if (grantedPermissions.any { it != PackageManager.PERMISSION_GRANTED }) {
                 val grantedPermissions = locationPermissions.map { ContextCompat.checkSelfPermission(context, it) }
@@ -317,10 +384,10 @@ class LocationRequestManager(private val context: Context, override val lifecycl
         writer.println("Request cache: id=${cacheManager.getId()} size=${cacheManager.getEntries().size}")
         writer.println("Current location request (${GranularityUtil.granularityToString(granularity)}, ${PriorityUtil.priorityToString(priority)}, ${intervalMillis.formatDuration()} from ${workSource})")
         for (request in binderRequests.values.toList()) {
-            writer.println("- bound ${request.workSource} ${request.intervalMillis.formatDuration()} ${GranularityUtil.granularityToString(request.effectiveGranularity)}, ${PriorityUtil.priorityToString(request.effectivePriority)} (pending: ${request.updatesPending.let { if (it == Int.MAX_VALUE) "\u221e" else "$it" }} ${request.timePendingMillis.formatDuration()}) app-op: ${when(currentAppOps[request.clientIdentity]) { null -> "false"; false -> "low"; true -> "high"}}")
+            writer.println("- bound ${request.workSource} ${request.intervalMillis.formatDuration()} ${GranularityUtil.granularityToString(request.effectiveGranularity)}, ${PriorityUtil.priorityToString(request.effectivePriority)} (pending: ${request.updatesPending.let { if (it == Int.MAX_VALUE) "\u221e" else "$it" }} ${request.timePendingMillis.formatDuration()}) app-op: ${when(currentAppOps[request.clientIdentity]) { null -> "false"; false -> "low"; true -> "high"}} delivery: ${deliveryQueues[request] ?: "none"}")
         }
         for (request in pendingIntentRequests.values.toList()) {
-            writer.println("- pending intent ${request.workSource} ${request.intervalMillis.formatDuration()} ${GranularityUtil.granularityToString(request.effectiveGranularity)}, ${PriorityUtil.priorityToString(request.effectivePriority)} (pending: ${request.updatesPending.let { if (it == Int.MAX_VALUE) "\u221e" else "$it" }} ${request.timePendingMillis.formatDuration()}) app-op: ${when(currentAppOps[request.clientIdentity]) { null -> "false"; false -> "low"; true -> "high"}}")
+            writer.println("- pending intent ${request.workSource} ${request.intervalMillis.formatDuration()} ${GranularityUtil.granularityToString(request.effectiveGranularity)}, ${PriorityUtil.priorityToString(request.effectivePriority)} (pending: ${request.updatesPending.let { if (it == Int.MAX_VALUE) "\u221e" else "$it" }} ${request.timePendingMillis.formatDuration()}) app-op: ${when(currentAppOps[request.clientIdentity]) { null -> "false"; false -> "low"; true -> "high"}} delivery: ${deliveryQueues[request] ?: "none"}")
         }
     }
 
@@ -340,6 +407,7 @@ class LocationRequestManager(private val context: Context, override val lifecycl
             if (SDK_INT >= 29) Manifest.permission.ACCESS_BACKGROUND_LOCATION else null
         )
         const val CACHE_TYPE = 1
+        private const val MAX_BATCH_SIZE = 100
 
         private class LocationRequestHolderParcelable(
             val clientIdentity: ClientIdentity,
@@ -386,12 +454,17 @@ class LocationRequestManager(private val context: Context, override val lifecycl
             private val context: Context,
             val clientIdentity: ClientIdentity,
             private var request: LocationRequest,
-            private var callback: ILocationCallback?,
+            @Volatile private var callback: ILocationCallback?,
             private val pendingIntent: PendingIntent?
         ) {
             private var start = SystemClock.elapsedRealtime()
             private var updates = 0
             private var lastLocation: Location? = null
+            @Volatile
+            var deliveryFailed = false
+            private val batch = arrayListOf<Location>()
+            private var batchStart = 0L
+            var batchFlushJob: Job? = null
 
             constructor(context: Context, parcelable: LocationRequestHolderParcelable) : this(context, parcelable.clientIdentity, parcelable.request, null, parcelable.pendingIntent) {
                 start = parcelable.start
@@ -414,12 +487,20 @@ class LocationRequestManager(private val context: Context, override val lifecycl
                 }
             val maxUpdateDelayMillis: Long
                 get() = max(max(request.maxUpdateDelayMillis, intervalMillis), 0L)
+            val isBatching: Boolean
+                get() = maxUpdateDelayMillis > intervalMillis
+            private val batchCapacity: Int
+                get() = (maxUpdateDelayMillis / max(intervalMillis, 1L)).coerceIn(1L, MAX_BATCH_SIZE.toLong()).toInt()
+            val batchDeadline: Long
+                get() = batchStart + maxUpdateDelayMillis
             val intervalMillis: Long
                 get() = request.intervalMillis
             val updatesPending: Int
                 get() = request.maxUpdates - updates
             val timePendingMillis: Long
                 get() = request.durationMillis - (SystemClock.elapsedRealtime() - start)
+            val isExpired: Boolean
+                get() = (updatesPending <= 0 || timePendingMillis < 0) && !deliveryFailed && callback?.asBinder()?.isBinderAlive != false
             var workSource: WorkSource = WorkSource(request.workSource).also { if (!clientIdentity.isSelfUser()) WorkSourceUtil.add(it, clientIdentity.uid, clientIdentity.packageName) }
                 private set
             val effectiveHighPower: Boolean
@@ -457,8 +538,16 @@ class LocationRequestManager(private val context: Context, override val lifecycl
                 if (timePendingMillis < 0) throw RuntimeException("duration limit reached (active for ${(SystemClock.elapsedRealtime() - start).formatDuration()}, duration ${request.durationMillis.formatDuration()})")
                 if (updatesPending <= 0) throw RuntimeException("max updates reached")
                 if (callback?.asBinder()?.isBinderAlive == false) throw RuntimeException("Binder died")
+                if (deliveryFailed) throw RuntimeException("Delivery failed")
+            }
+
+            fun checkUpdatesPending() {
+                if (updatesPending <= 0) throw RuntimeException("max updates reached")
             }
 
+            /**
+             * @return true if the location was accepted for delivery. Use [takeResult] to get the result to deliver.
+             */
             fun processNewLocation(location: Location): Boolean {
                 check()
                 if (lastLocation != null && location.elapsedMillis - lastLocation!!.elapsedMillis < request.minUpdateIntervalMillis) return false
@@ -475,14 +564,29 @@ class LocationRequestManager(private val context: Context, override val lifecycl
                         Location(location).apply { provider = "fused" }
                     }
                 }
-                val result = LocationResult.create(listOf(returnedLocation))
-                callback?.onLocationResult(result)
-                pendingIntent?.send(context, 0, Intent().apply { putExtra(LocationResult.EXTRA_LOCATION_RESULT, result) })
                 if (request.maxUpdates != Int.MAX_VALUE) updates++
-                check()
+                if (batch.isEmpty()) batchStart = SystemClock.elapsedRealtime()
+                batch.add(returnedLocation)
                 return true
             }
 
+            /**
+             * @return all locations accepted since the last result, if they are due for delivery. Unless batching, or if
+             * [force] is set, they are always due.
+             */
+            fun takeResult(force: Boolean = false): LocationResult? {
+                if (batch.isEmpty()) return null
+                if (isBatching && !force && batch.size < batchCapacity && updatesPending > 0 && SystemClock.elapsedRealtime() < batchDeadline) return null
+                val result = LocationResult.create(batch.toList())
+                batch.clear()
+                return result
+            }
+
+            fun deliver(result: LocationResult) {
+                callback?.onLocationResult(result)
+                pendingIntent?.send(context, 0, Intent().apply { putExtra(LocationResult.EXTRA_LOCATION_RESULT, result) })
+            }
+
             init {
                 require(callback != null || pendingIntent != null)
             }
@@ -110,6 +110,10 @@ class LocationPreferencesFragment : PreferenceFragmentCompat() {
 
                         DIRECTION_IMPORT -> {
                             val counter = msg.arg1
+                            if (msg.data.getBoolean(EXTRA_PROGRESS)) {
+                                currentDialog?.setTitle(getString(R.string.location_data_import_result_toast, counter))
+                                return
+                            }
                             Toast.makeText(requireContext(), getString(R.string.location_data_import_result_toast, counter), Toast.LENGTH_SHORT).show()
                             currentDialog?.dismiss()
                         }
@@ -0,0 +1,88 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.location.manager;
+
+import android.location.Location;
+
+import com.google.android.gms.location.LocationResult;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import kotlin.Unit;
+import kotlinx.coroutines.GlobalScope;
+
+public class LocationDeliveryQueueTest extends TestCase {
+    private final List<Object> events = Collections.synchronizedList(new ArrayList<>());
+    private LocationDeliveryQueue queue;
+
+    @Override
+    protected void setUp() {
+        queue = new LocationDeliveryQueue(GlobalScope.INSTANCE, result -> {
+            events.add(result);
+            return Unit.INSTANCE;
+        }, e -> {
+            events.add(e);
+            return Unit.INSTANCE;
+        }, 16);
+    }
+
+    private static LocationResult batch(int size) {
+        List<Location> locations = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            locations.add(new Location("fused"));
+        }
+        return LocationResult.create(locations);
+    }
+
+    /**
+     * A batching request that reaches its duration: the remaining batch is flushed into the queue before it is finished,
+     * and the request is only cancelled after that batch was delivered.
+     */
+    public void testBatchDeliveredWhenRequestExpires() throws InterruptedException {
+        LocationResult delivered = batch(3);
+        LocationResult remaining = batch(2);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        queue.offer(delivered);
+        queue.offer(remaining);
+        queue.finish(() -> {
+            events.add("cancel");
+            cancelled.countDown();
+            return Unit.INSTANCE;
+        });
+        assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+        assertEquals(3, events.size());
+        assertSame(delivered, events.get(0));
+        assertSame(remaining, events.get(1));
+        assertEquals("cancel", events.get(2));
+    }
+
+    public void testNothingAcceptedAfterFinish() throws InterruptedException {
+        CountDownLatch cancelled = new CountDownLatch(1);
+        queue.finish(() -> {
+            cancelled.countDown();
+            return Unit.INSTANCE;
+        });
+        queue.offer(batch(1));
+        assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+        assertTrue(events.isEmpty());
+    }
+
+    public void testDiscardDropsPendingBatches() {
+        queue.discard();
+        queue.offer(batch(1));
+        queue.finish(() -> {
+            events.add("cancel");
+            return Unit.INSTANCE;
+        });
+        assertTrue(events.isEmpty());
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.nearby.exposurenotification
+
+import okio.ByteString
+
+/**
+ * Collects advertisements seen by the scanner in memory, so that they can be written to the database in a single transaction.
+ *
+ * Repeated sightings of the same RPI are merged into one entry: the first sighting is kept, later sightings extend it up to
+ * the last one with their RSSI averaged, weighted by the time since the sighting before, like the database does.
+ */
+class AdvertisementBuffer {
+    class Entry(val rpi: ByteArray, val aem: ByteArray, val firstTimestamp: Long, val firstRssi: Int) {
+        var lastTimestamp = firstTimestamp
+            private set
+        private var rssiSum = 0L
+        private var rssiWeight = 0L
+
+        /**
+         * Average RSSI of all sightings after the first one.
+         */
+        val lastRssi: Int
+            get() = if (rssiWeight == 0L) firstRssi else (rssiSum / rssiWeight).toInt()
+
+        fun add(rssi: Int, timestamp: Long) {
+            // Batched results can share the same timestamp, still count them
+            val weight = (timestamp - lastTimestamp).coerceAtLeast(1)
+            rssiSum += rssi * weight
+            rssiWeight += weight
+            if (timestamp > lastTimestamp) lastTimestamp = timestamp
+        }
+    }
+
+    private val entries = LinkedHashMap<ByteString, Entry>()
+
+    val size: Int
+        @Synchronized get() = entries.size
+
+    /**
+     * @return true if the buffer was empty before
+     */
+    @Synchronized
+    fun add(rpi: ByteArray, aem: ByteArray, rssi: Int, timestamp: Long): Boolean {
+        val wasEmpty = entries.isEmpty()
+        val key = ByteString.of(*rpi)
+        val entry = entries[key]
+        if (entry == null) {
+            entries[key] = Entry(rpi, aem, timestamp, rssi)
+        } else {
+            entry.add(rssi, timestamp)
+        }
+        return wasEmpty
+    }
+
+    /**
+     * @return all entries collected since the last call, in the order they were first seen
+     */
+    @Synchronized
+    fun drain(): List<Entry> {
+        val result = entries.values.toList()
+        entries.clear()
+        return result
+    }
+}
@@ -62,6 +62,39 @@ fun generateTemporaryExposureKey(intervalNumber: Int): TemporaryExposureKey.Temp
 fun generateCurrentDayTemporaryExposureKey(): TemporaryExposureKey = generateTemporaryExposureKey(currentDayRollingStartNumber).build()
 fun generateIntraDayTemporaryExposureKey(intervalNumber: Int = currentIntervalNumber): TemporaryExposureKey = generateTemporaryExposureKey(intervalNumber).build()
 
+/**
+ * Cipher and Mac instances of the current thread, so that they don't need to be looked up again for every key.
+ */
+private class CryptoContext {
+    val mac: Mac = Mac.getInstance(HKDF_ALGORITHM)
+    val rpiCipher: Cipher = Cipher.getInstance(RPID_ALGORITHM)
+    val aemCipher: Cipher = Cipher.getInstance(AEM_ALGORITHM)
+    val emptySalt = SecretKeySpec(ByteArray(HASH_LENGTH), HKDF_ALGORITHM)
+    val pseudoRandomKey = ByteArray(HASH_LENGTH)
+    val hkdfOutput = ByteArray(HASH_LENGTH)
+    var rpiInput = createRpiInput(ROLLING_PERIOD)
+
+    fun rpiInput(rollingPeriod: Int): ByteArray {
+        if (rpiInput.size < rollingPeriod * AES_BLOCK_SIZE) rpiInput = createRpiInput(rollingPeriod)
+        return rpiInput
+    }
+
+    private fun createRpiInput(rollingPeriod: Int) = ByteArray(AES_BLOCK_SIZE * rollingPeriod).also {
+        val prefix = RPID_PREFIX.toByteArray(StandardCharsets.UTF_8)
+        for (i in 0 until rollingPeriod) {
+            System.arraycopy(prefix, 0, it, i * AES_BLOCK_SIZE, prefix.size)
+        }
+    }
+
+    companion object {
+        private val local = object : ThreadLocal<CryptoContext>() {
+            override fun initialValue() = CryptoContext()
+        }
+
+        fun get(): CryptoContext = local.get()!!
+    }
+}
+
 @TargetApi(21)
 fun TemporaryExposureKey.generateRpiKey(): SecretKeySpec {
     return SecretKeySpec(hkdf(keyData, null, RPIK_HKDF_INFO.toByteArray(StandardCharsets.UTF_8)), RPIK_ALGORITHM)
@@ -74,7 +107,7 @@ fun TemporaryExposureKey.generateAemKey(): SecretKeySpec {
 
 @TargetApi(21)
 fun TemporaryExposureKey.generateRpiId(intervalNumber: Int): ByteArray {
-    val cipher = Cipher.getInstance(RPID_ALGORITHM)
+    val cipher = CryptoContext.get().rpiCipher
     cipher.init(Cipher.ENCRYPT_MODE, generateRpiKey())
     val data = ByteBuffer.allocate(AES_BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN).apply {
         put(RPID_PREFIX.toByteArray(StandardCharsets.UTF_8))
@@ -86,21 +119,31 @@ fun TemporaryExposureKey.generateRpiId(intervalNumber: Int): ByteArray {
 
 @TargetApi(21)
 fun TemporaryExposureKey.generateAllRpiIds(): ByteArray {
-    val cipher = Cipher.getInstance(RPID_ALGORITHM)
-    cipher.init(Cipher.ENCRYPT_MODE, generateRpiKey())
-    val data = ByteBuffer.allocate(AES_BLOCK_SIZE * rollingPeriod).order(ByteOrder.LITTLE_ENDIAN).apply {
-        val prefix = RPID_PREFIX.toByteArray(StandardCharsets.UTF_8)
-        for (i in 0 until rollingPeriod) {
-            put(prefix)
-            position(i * 16 + 12)
-            putInt(rollingStartIntervalNumber + i)
-        }
-    }.array()
-    return cipher.doFinal(data)
+    return ByteArray(AES_BLOCK_SIZE * rollingPeriod).also { generateAllRpiIds(it) }
+}
+
+/**
+ * Writes the RPIs of all intervals of the key to [output], starting at [offset]. [output] needs to have space for
+ * 16 bytes per interval of the rolling period.
+ */
+@TargetApi(21)
+fun TemporaryExposureKey.generateAllRpiIds(output: ByteArray, offset: Int = 0) {
+    val context = CryptoContext.get()
+    val data = context.rpiInput(rollingPeriod)
+    for (i in 0 until rollingPeriod) {
+        val intervalNumber = rollingStartIntervalNumber + i
+        val pos = i * AES_BLOCK_SIZE + 12
+        data[pos] = intervalNumber.toByte()
+        data[pos + 1] = (intervalNumber shr 8).toByte()
+        data[pos + 2] = (intervalNumber shr 16).toByte()
+        data[pos + 3] = (intervalNumber shr 24).toByte()
+    }
+    context.rpiCipher.init(Cipher.ENCRYPT_MODE, generateRpiKey())
+    context.rpiCipher.doFinal(data, 0, AES_BLOCK_SIZE * rollingPeriod, output, offset)
 }
 
 fun TemporaryExposureKey.cryptAem(rpi: ByteArray, metadata: ByteArray): ByteArray {
-    val cipher = Cipher.getInstance(AEM_ALGORITHM)
+    val cipher = CryptoContext.get().aemCipher
     cipher.init(Cipher.ENCRYPT_MODE, generateAemKey(), IvParameterSpec(rpi))
     return cipher.doFinal(metadata)
 }
@@ -112,11 +155,14 @@ fun TemporaryExposureKey.generatePayload(intervalNumber: Int, metadata: ByteArra
 }
 
 private fun hkdf(inputKeyingMaterial: ByteArray, inputSalt: ByteArray?, info: ByteArray): ByteArray {
-    val mac = Mac.getInstance(HKDF_ALGORITHM)
-    val salt = if (inputSalt == null || inputSalt.isEmpty()) ByteArray(HASH_LENGTH) else inputSalt
-    mac.init(SecretKeySpec(salt, HKDF_ALGORITHM))
-    val pseudoRandomKey = mac.doFinal(inputKeyingMaterial)
-    mac.init(SecretKeySpec(pseudoRandomKey, HKDF_ALGORITHM))
+    val context = CryptoContext.get()
+    val mac = context.mac
+    mac.init(if (inputSalt == null || inputSalt.isEmpty()) context.emptySalt else SecretKeySpec(inputSalt, HKDF_ALGORITHM))
+    mac.update(inputKeyingMaterial)
+    mac.doFinal(context.pseudoRandomKey, 0)
+    mac.init(SecretKeySpec(context.pseudoRandomKey, HKDF_ALGORITHM))
     mac.update(info)
-    return Arrays.copyOf(mac.doFinal(byteArrayOf(0x01)), HKDF_LENGTH)
+    mac.update(1.toByte())
+    mac.doFinal(context.hkdfOutput, 0)
+    return Arrays.copyOf(context.hkdfOutput, HKDF_LENGTH)
 }
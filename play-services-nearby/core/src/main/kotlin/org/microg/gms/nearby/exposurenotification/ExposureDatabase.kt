@@ -15,10 +15,12 @@ import android.database.sqlite.SQLiteDatabase
 import android.database.sqlite.SQLiteDatabase.CONFLICT_IGNORE
 import android.database.sqlite.SQLiteOpenHelper
 import android.database.sqlite.SQLiteQueryBuilder
+import android.database.sqlite.SQLiteStatement
 import android.net.Uri
 import android.os.Parcel
 import android.os.Parcelable
 import android.util.Log
+import androidx.annotation.GuardedBy
 import androidx.core.content.FileProvider
 import com.google.android.gms.nearby.exposurenotification.*
 import kotlinx.coroutines.*
@@ -29,12 +31,20 @@ import java.lang.Runnable
 import java.nio.ByteBuffer
 import java.util.*
 import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
 import kotlin.experimental.and
 
 @TargetApi(21)
 class ExposureDatabase private constructor(private val context: Context) : SQLiteOpenHelper(context, DB_NAME, null, DB_VERSION) {
     private val createdAt: Exception = Exception("Database ${hashCode()} created")
     private var refCount = 1
+    // Statements for noting advertisements are compiled once, as they are used for every advertisement seen
+    private val advertisementLock = Any()
+    @GuardedBy("advertisementLock")
+    private var updateAdvertisementStatement: SQLiteStatement? = null
+    @GuardedBy("advertisementLock")
+    private var insertAdvertisementStatement: SQLiteStatement? = null
 
     init {
         setWriteAheadLoggingEnabled(true)
@@ -191,8 +201,33 @@ class ExposureDatabase private constructor(private val context: Context) : SQLit
         }
     }
 
-    fun noteAdvertisement(rpi: ByteArray, aem: ByteArray, rssi: Int, timestamp: Long = Date().time) = writableDatabase.run {
-        val update = compileStatement("UPDATE $TABLE_ADVERTISEMENTS SET rssi = IFNULL(((rssi * duration) + (? * MAX(0, ? - timestamp - duration))) / MAX(duration, ? - timestamp), -100), duration = MAX(duration, ? - timestamp) WHERE rpi = ? AND timestamp > ? AND timestamp < ?").run {
+    /**
+     * Writes all advertisements collected in the buffer in a single transaction.
+     */
+    fun noteAdvertisements(entries: List<AdvertisementBuffer.Entry>) {
+        if (entries.isEmpty()) return
+        // Opened before taking the lock, close() takes the locks in the opposite order
+        val database = writableDatabase
+        synchronized(advertisementLock) {
+            database.beginTransactionNonExclusive()
+            try {
+                for (entry in entries) {
+                    noteAdvertisementLocked(database, entry.rpi, entry.aem, entry.firstRssi, entry.firstTimestamp)
+                    if (entry.lastTimestamp > entry.firstTimestamp) {
+                        noteAdvertisementLocked(database, entry.rpi, entry.aem, entry.lastRssi, entry.lastTimestamp)
+                    }
+                }
+                database.setTransactionSuccessful()
+            } finally {
+                database.endTransaction()
+            }
+        }
+    }
+
+    private fun noteAdvertisementLocked(database: SQLiteDatabase, rpi: ByteArray, aem: ByteArray, rssi: Int, timestamp: Long) {
+        val updateStatement = updateAdvertisementStatement ?: database.compileStatement("UPDATE $TABLE_ADVERTISEMENTS SET rssi = IFNULL(((rssi * duration) + (? * MAX(0, ? - timestamp - duration))) / MAX(duration, ? - timestamp), -100), duration = MAX(duration, ? - timestamp) WHERE rpi = ? AND timestamp > ? AND timestamp < ?")
+                .also { updateAdvertisementStatement = it }
+        val update = updateStatement.run {
             bindLong(1, rssi.toLong())
             bindLong(2, timestamp)
             bindLong(3, timestamp)
@@ -203,13 +238,16 @@ class ExposureDatabase private constructor(private val context: Context) : SQLit
             executeUpdateDelete()
         }
         if (update <= 0) {
-            insert(TABLE_ADVERTISEMENTS, "NULL", ContentValues().apply {
-                put("rpi", rpi)
-                put("aem", aem)
-                put("timestamp", timestamp)
-                put("rssi", rssi)
-                put("duration", MINIMUM_EXPOSURE_DURATION_MS)
-            })
+            val insertStatement = insertAdvertisementStatement ?: database.compileStatement("INSERT OR IGNORE INTO $TABLE_ADVERTISEMENTS(rpi, aem, timestamp, rssi, duration) VALUES (?, ?, ?, ?, ?)")
+                    .also { insertAdvertisementStatement = it }
+            insertStatement.run {
+                bindBlob(1, rpi)
+                bindBlob(2, aem)
+                bindLong(3, timestamp)
+                bindLong(4, rssi.toLong())
+                bindLong(5, MINIMUM_EXPOSURE_DURATION_MS)
+                executeInsert()
+            }
         }
     }
 
@@ -437,50 +475,89 @@ class ExposureDatabase private constructor(private val context: Context) : SQLit
         }
     }
 
-    fun finishSingleMatching(tid: Long, database: SQLiteDatabase = writableDatabase): Int {
-        val workQueue = LinkedBlockingQueue<Runnable>()
-        val poolSize = Runtime.getRuntime().availableProcessors()
-        val executor = ThreadPoolExecutor(poolSize, poolSize, 1, TimeUnit.SECONDS, workQueue)
+    /**
+     * Matches the single keys stored for the token against the observed RPIs in [rpiIndex].
+     *
+     * @return the number of keys
+     */
+    fun finishSingleMatching(tid: Long, rpiIndex: RpiIndex, database: SQLiteDatabase = writableDatabase, statistics: MatchingStatistics? = null): Int {
         val futures = arrayListOf<Future<*>>()
         val keys = listSingleDiagnosisKeysPendingSearch(tid, database)
         val oldestRpi = oldestRpi
         for (key in keys) {
             if ((key.rollingStartIntervalNumber + key.rollingPeriod).toLong() * ROLLING_WINDOW_LENGTH_MS + ALLOWED_KEY_OFFSET_MS < oldestRpi) {
                 // Early ignore because key is older than since we started scanning.
+                statistics?.ignored?.incrementAndGet()
                 applySingleDiagnosisKeySearchResult(key, false, database)
             } else {
-                futures.add(executor.submit {
-                    applySingleDiagnosisKeySearchResult(key, findMeasuredExposures(key).isNotEmpty(), database)
+                futures.add(matchingExecutor.submit {
+                    val start = System.currentTimeMillis()
+                    val matched = findMeasuredExposures(key, rpiIndex = rpiIndex).isNotEmpty()
+                    statistics?.matchTime?.addAndGet(System.currentTimeMillis() - start)
+                    statistics?.processed?.incrementAndGet()
+                    if (matched) statistics?.found?.incrementAndGet()
+                    applySingleDiagnosisKeySearchResult(key, matched, database)
                 })
             }
         }
         for (future in futures) {
             future.get()
         }
-        executor.shutdown()
         return keys.size
     }
 
-    fun finishFileMatching(tid: Long, hash: ByteArray, endTimestamp: Long, keys: List<TemporaryExposureKey>, updates: List<TemporaryExposureKey>, database: SQLiteDatabase = writableDatabase) = database.run {
-        beginTransactionNonExclusive()
-        try {
-            insert(TABLE_TEK_CHECK_FILE, "NULL", ContentValues().apply {
-                put("hash", ByteString.of(*hash).hex())
-                put("endTimestamp", endTimestamp)
-                put("keys", keys.size + updates.size)
-            })
-            val tcfid = getDiagnosisFileId(hash, this) ?: return
-            val workQueue = LinkedBlockingQueue<Runnable>()
-            val poolSize = Runtime.getRuntime().availableProcessors()
-            val executor = ThreadPoolExecutor(poolSize, poolSize, 1, TimeUnit.SECONDS, workQueue)
-            val futures = arrayListOf<Future<TemporaryExposureKey?>>()
-            val oldestRpi = oldestRpi
-            var ignored = 0
-            var processed = 0
-            var found = 0
-            var riskLogged = -1
-            var startLogged = -1
-            for (key in keys) {
+    /**
+     * Result of matching a diagnosis key file, not yet stored. Revised keys are only buffered, as they can only be applied
+     * once the matches of all earlier files are stored.
+     */
+    class FileMatching(val hash: ByteArray, val endTimestamp: Long, val keys: Int, val matches: Collection<TemporaryExposureKey>, val revisedKeys: List<TemporaryExposureKey>)
+
+    /**
+     * Matches the keys of a diagnosis key file against the observed RPIs in [rpiIndex]. The result is stored with
+     * [storeFileMatching]. Matching only reads from the database, so the next file can be matched while earlier files are
+     * still being matched or stored.
+     *
+     * [readKeys] is invoked on the calling thread and passes all keys and revised keys of the file to the given callbacks,
+     * returning the end timestamp of the file. Keys are matched on worker threads while they are read, reading blocks if
+     * matching falls behind, so that only a bounded number of keys is held in memory. Counters and timings are added to
+     * [statistics], if given.
+     */
+    fun matchFile(hash: ByteArray, rpiIndex: RpiIndex, statistics: MatchingStatistics? = null, readKeys: (onKey: (TemporaryExposureKey) -> Unit, onRevisedKey: (TemporaryExposureKey) -> Unit) -> Long): FileMatching {
+        val pendingBatches = Semaphore(MAX_PENDING_KEY_BATCHES)
+        val matches = ConcurrentLinkedQueue<TemporaryExposureKey>()
+        val failure = AtomicReference<Throwable>()
+        val processed = AtomicInteger()
+        val updates = arrayListOf<TemporaryExposureKey>()
+        val oldestRpi = oldestRpi
+        var keys = 0
+        var ignored = 0
+        var riskLogged = -1
+        var startLogged = -1
+        var batch = ArrayList<TemporaryExposureKey>(KEY_BATCH_SIZE)
+        var waitTime = 0L
+        fun submit(keyBatch: List<TemporaryExposureKey>) {
+            val waitStart = System.currentTimeMillis()
+            pendingBatches.acquire()
+            waitTime += System.currentTimeMillis() - waitStart
+            matchingExecutor.execute {
+                val start = System.currentTimeMillis()
+                try {
+                    for (key in keyBatch) {
+                        processed.incrementAndGet()
+                        if (findMeasuredExposures(key, rpiIndex = rpiIndex).isNotEmpty()) matches.add(key)
+                    }
+                } catch (e: Throwable) {
+                    failure.compareAndSet(null, e)
+                } finally {
+                    statistics?.matchTime?.addAndGet(System.currentTimeMillis() - start)
+                    pendingBatches.release()
+                }
+            }
+        }
+        val readStart = System.currentTimeMillis()
+        val endTimestamp = try {
+            readKeys({ key ->
+                keys++
                 if (key.transmissionRiskLevel > riskLogged || key.rollingStartIntervalNumber > startLogged) {
                     riskLogged = key.transmissionRiskLevel
                     startLogged = key.rollingStartIntervalNumber
@@ -488,45 +565,74 @@ class ExposureDatabase private constructor(private val context: Context) : SQLit
                 }
                 if ((key.rollingStartIntervalNumber + key.rollingPeriod).toLong() * ROLLING_WINDOW_LENGTH_MS + ALLOWED_KEY_OFFSET_MS < oldestRpi) {
                     // Early ignore because key is older than since we started scanning.
-                    ignored++;
+                    ignored++
                 } else {
-                    futures.add(executor.submit(Callable {
-                        processed++
-                        if (findMeasuredExposures(key).isNotEmpty()) {
-                            key
-                        } else {
-                            null
-                        }
-                    }))
-                }
-            }
-            for (future in futures) {
-                future.get()?.let {
-                    applyDiagnosisFileKeySearchResult(tcfid, it, this)
-                    found++
+                    batch.add(key)
+                    if (batch.size >= KEY_BATCH_SIZE) {
+                        submit(batch)
+                        batch = ArrayList(KEY_BATCH_SIZE)
+                    }
                 }
+            }, { update ->
+                updates.add(update)
+            }).also {
+                if (batch.isNotEmpty()) submit(batch)
             }
-            Log.d(TAG, "Processed $processed keys, found $found matches, ignored $ignored keys that are older than our scanning efforts ($oldestRpi)")
-            executor.shutdown()
-            for (update in updates) {
-                val matched = compileStatement("SELECT COUNT(tcsid) FROM $TABLE_TEK_CHECK_FILE_MATCH WHERE keyData = ? AND rollingStartNumber = ? AND rollingPeriod = ?").use {
-                    it.bindBlob(1, update.keyData)
-                    it.bindLong(2, update.rollingStartIntervalNumber.toLong())
-                    it.bindLong(3, update.rollingPeriod.toLong())
-                    it.simpleQueryForLong()
+        } finally {
+            // Time spent blocked because matching fell behind is not part of parsing
+            statistics?.parseTime?.addAndGet(System.currentTimeMillis() - readStart - waitTime)
+            // Wait for all submitted batches
+            pendingBatches.acquire(MAX_PENDING_KEY_BATCHES)
+        }
+        failure.get()?.let { throw it }
+        statistics?.processed?.addAndGet(processed.get())
+        statistics?.found?.addAndGet(matches.size)
+        statistics?.ignored?.addAndGet(ignored)
+        Log.d(TAG, "Processed ${processed.get()} keys, found ${matches.size} matches, ignored $ignored keys that are older than our scanning efforts ($oldestRpi)")
+        return FileMatching(hash, endTimestamp, keys, matches, updates)
+    }
+
+    /**
+     * Stores the result of [matchFile] for the token. Files need to be stored in the order they were provided, as revised
+     * keys only apply to keys matched from earlier files.
+     *
+     * @return the number of keys and revised keys in the file
+     */
+    fun storeFileMatching(tid: Long, matching: FileMatching, database: SQLiteDatabase = writableDatabase): Pair<Int, Int> {
+        val result = matching.keys to matching.revisedKeys.size
+        database.run {
+            beginTransactionNonExclusive()
+            try {
+                insert(TABLE_TEK_CHECK_FILE, "NULL", ContentValues().apply {
+                    put("hash", ByteString.of(*matching.hash).hex())
+                    put("endTimestamp", matching.endTimestamp)
+                    put("keys", matching.keys + matching.revisedKeys.size)
+                })
+                val tcfid = getDiagnosisFileId(matching.hash, this) ?: return result
+                for (match in matching.matches) {
+                    applyDiagnosisFileKeySearchResult(tcfid, match, this)
                 }
-                if (matched > 0) {
-                    applyDiagnosisFileKeySearchResult(tcfid, update, this)
+                for (update in matching.revisedKeys) {
+                    val matched = compileStatement("SELECT COUNT(tcsid) FROM $TABLE_TEK_CHECK_FILE_MATCH WHERE keyData = ? AND rollingStartNumber = ? AND rollingPeriod = ?").use {
+                        it.bindBlob(1, update.keyData)
+                        it.bindLong(2, update.rollingStartIntervalNumber.toLong())
+                        it.bindLong(3, update.rollingPeriod.toLong())
+                        it.simpleQueryForLong()
+                    }
+                    if (matched > 0) {
+                        applyDiagnosisFileKeySearchResult(tcfid, update, this)
+                    }
                 }
+                insert(TABLE_TEK_CHECK_FILE_TOKEN, "NULL", ContentValues().apply {
+                    put("tid", tid)
+                    put("tcfid", tcfid)
+                })
+                setTransactionSuccessful()
+            } finally {
+                endTransaction()
             }
-            insert(TABLE_TEK_CHECK_FILE_TOKEN, "NULL", ContentValues().apply {
-                put("tid", tid)
-                put("tcfid", tcfid)
-            })
-            setTransactionSuccessful()
-        } finally {
-            endTransaction()
         }
+        return result
     }
 
     private fun findAllSingleMeasuredExposures(tid: Long, database: SQLiteDatabase = readableDatabase): List<MeasuredExposure> {
@@ -539,15 +645,42 @@ class ExposureDatabase private constructor(private val context: Context) : SQLit
 
     fun findAllMeasuredExposures(tid: Long, database: SQLiteDatabase = readableDatabase) = findAllSingleMeasuredExposures(tid, database) + findAllFileMeasuredExposures(tid, database)
 
-    private fun findMeasuredExposures(key: TemporaryExposureKey, database: SQLiteDatabase = readableDatabase): List<MeasuredExposure> {
-        val allRpis = key.generateAllRpiIds()
-        val rpis = (0 until key.rollingPeriod).map { i ->
+    /**
+     * Loads all observed RPIs, so that keys can be checked against them without a query per key.
+     *
+     * The index is a snapshot, load it once per batch of keys and files and pass it to [finishSingleMatching] and
+     * [matchFile].
+     */
+    fun loadRpiIndex(database: SQLiteDatabase = readableDatabase): RpiIndex = database.run {
+        rawQuery("SELECT DISTINCT rpi FROM $TABLE_ADVERTISEMENTS", null).use { cursor ->
+            val index = RpiIndex(cursor.count)
+            while (cursor.moveToNext()) {
+                val rpi = cursor.getBlob(0)
+                if (rpi.size == 16) index.add(rpi)
+            }
+            Log.d(TAG, "Loaded ${index.size} RPIs for matching")
+            index
+        }
+    }
+
+    /**
+     * @param rpiIndex if given, keys that have none of their RPIs in the index are skipped without querying the database.
+     */
+    private fun findMeasuredExposures(key: TemporaryExposureKey, database: SQLiteDatabase = readableDatabase, rpiIndex: RpiIndex? = null): List<MeasuredExposure> {
+        val allRpis = rpiBuffer.get()!!.takeIf { it.size >= key.rollingPeriod * 16 } ?: ByteArray(key.rollingPeriod * 16)
+        key.generateAllRpiIds(allRpis)
+        // Only RPIs that were observed need to be looked up
+        val intervals = (0 until key.rollingPeriod).filter { rpiIndex == null || rpiIndex.contains(allRpis, it * 16) }
+        if (intervals.isEmpty()) return emptyList()
+        val rpis = intervals.map { i ->
             val pos = i * 16
             allRpis.sliceArray(pos until (pos + 16))
         }
         val measures = findExposures(rpis, key.rollingStartIntervalNumber.toLong() * ROLLING_WINDOW_LENGTH_MS - ALLOWED_KEY_OFFSET_MS, (key.rollingStartIntervalNumber.toLong() + key.rollingPeriod) * ROLLING_WINDOW_LENGTH_MS + ALLOWED_KEY_OFFSET_MS, database)
         return measures.filter {
-            val index = rpis.indexOfFirst { rpi -> rpi.contentEquals(it.rpi) }
+            val position = rpis.indexOfFirst { rpi -> rpi.contentEquals(it.rpi) }
+            if (position < 0) return@filter false
+            val index = intervals[position]
             val targetTimestamp = (key.rollingStartIntervalNumber + index).toLong() * ROLLING_WINDOW_LENGTH_MS
             it.timestamp >= targetTimestamp - ALLOWED_KEY_OFFSET_MS && it.timestamp <= targetTimestamp + ROLLING_WINDOW_LENGTH_MS + ALLOWED_KEY_OFFSET_MS
         }.mapNotNull {
@@ -836,6 +969,17 @@ class ExposureDatabase private constructor(private val context: Context) : SQLit
         return super.getWritableDatabase()
     }
 
+    @Synchronized
+    override fun close() {
+        synchronized(advertisementLock) {
+            updateAdvertisementStatement?.close()
+            updateAdvertisementStatement = null
+            insertAdvertisementStatement?.close()
+            insertAdvertisementStatement = null
+        }
+        super.close()
+    }
+
     @Synchronized
     fun ref(): ExposureDatabase {
         refCount++
@@ -854,7 +998,22 @@ class ExposureDatabase private constructor(private val context: Context) : SQLit
     }
 
     companion object {
+        // Buffer for the RPIs of a key, reused by each matching thread
+        private val rpiBuffer = object : ThreadLocal<ByteArray>() {
+            override fun initialValue() = ByteArray(ROLLING_PERIOD * 16)
+        }
         private const val DB_NAME = "exposure.db"
+        // Keys matched per task and number of tasks that may be queued, bounds the keys read ahead of matching
+        private const val KEY_BATCH_SIZE = 256
+        private const val MAX_PENDING_KEY_BATCHES = 32
+        // Shared by all matching calls, so that concurrent calls don't oversubscribe the CPU. Idle threads time out.
+        private val matchingExecutor by lazy {
+            val poolSize = Runtime.getRuntime().availableProcessors()
+            val threadNumber = AtomicInteger()
+            ThreadPoolExecutor(poolSize, poolSize, 30, TimeUnit.SECONDS, LinkedBlockingQueue()) { runnable ->
+                Thread(runnable, "ExposureMatching-${threadNumber.incrementAndGet()}").apply { isDaemon = true }
+            }.apply { allowCoreThreadTimeOut(true) }
+        }
         private const val DB_VERSION = 12
         private const val DB_SIZE_TOO_LARGE = 256L * 1024 * 1024
         private const val MAX_DELETE_TIME = 5000L
@@ -31,13 +31,18 @@ import com.google.android.gms.nearby.exposurenotification.internal.*
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import kotlinx.coroutines.withContext
+import okio.buffer
+import okio.source
 import org.json.JSONArray
 import org.json.JSONObject
 import org.microg.gms.common.Constants
 import org.microg.gms.common.PackageUtils
 import org.microg.gms.nearby.exposurenotification.proto.TEKSignatureList
-import org.microg.gms.nearby.exposurenotification.proto.TemporaryExposureKeyExport
 import org.microg.gms.nearby.exposurenotification.proto.TemporaryExposureKeyProto
 import org.microg.gms.utils.warnOnTransactionIssues
 import java.io.File
@@ -383,54 +388,66 @@ class ExposureNotificationServiceImpl(private val context: Context, override val
                     }
                 }
 
-                var newKeys = if (params.keys != null) database.finishSingleMatching(tid) else 0
-                for ((cacheFile, hash) in todoKeyFiles) {
-                    withContext(Dispatchers.IO) {
-                        if (backendPublicKey != null && !verifyKeyFile(cacheFile)) {
-                            Log.w(TAG, "Skipping non-verified key file")
-                            return@withContext
+                val statistics = MatchingStatistics()
+                // Observed RPIs are only loaded once for all keys and files of this call
+                val rpiIndex by lazy { database.loadRpiIndex() }
+                var newKeys = if (params.keys != null) database.finishSingleMatching(tid, rpiIndex, statistics = statistics) else 0
+                coroutineScope {
+                    // Signatures of upcoming files are verified while earlier files are matched.
+                    val verificationSlots = Semaphore(MAX_PARALLEL_VERIFICATIONS)
+                    val verified = todoKeyFiles.map { (cacheFile, _) ->
+                        async(Dispatchers.IO) {
+                            if (backendPublicKey == null) return@async true
+                            verificationSlots.withPermit {
+                                val verifyStart = System.currentTimeMillis()
+                                verifyKeyFile(cacheFile).also { statistics.verifyTime.addAndGet(System.currentTimeMillis() - verifyStart) }
+                            }
                         }
-                        try {
-                            ZipFile(cacheFile).use { zip ->
-                                for (entry in zip.entries()) {
-                                    if (entry.name == "export.bin") {
-                                        val stream = zip.getInputStream(entry)
-                                        val prefix = ByteArray(16)
-                                        var totalBytesRead = 0
-                                        var bytesRead = 0
-                                        while (bytesRead != -1 && totalBytesRead < prefix.size) {
-                                            bytesRead = stream.read(prefix, totalBytesRead, prefix.size - totalBytesRead)
-                                            if (bytesRead > 0) {
-                                                totalBytesRead += bytesRead
-                                            }
-                                        }
-                                        if (totalBytesRead == prefix.size && String(prefix).trim() == "EK Export v1") {
-                                            val export = TemporaryExposureKeyExport.ADAPTER.decode(stream)
-                                            database.finishFileMatching(tid, hash, export.end_timestamp?.let { it * 1000 }
-                                                    ?: System.currentTimeMillis(), export.keys.map { it.toKey() }, export.revised_keys.map { it.toKey() })
-                                            keys += export.keys.size + export.revised_keys.size
-                                            newKeys += export.keys.size
-                                        } else {
-                                            Log.d(TAG, "export.bin had invalid prefix")
-                                        }
-                                    }
-                                }
+                    }
+                    // The next file is unzipped, parsed and matched while the current one is still matching. Results are
+                    // stored one after another, as revised keys only apply if the key was matched from an earlier file.
+                    val matchingSlots = Semaphore(MAX_PARALLEL_FILE_MATCHINGS)
+                    val matchings = todoKeyFiles.mapIndexed { index, (cacheFile, hash) ->
+                        async(Dispatchers.IO) {
+                            if (!verified[index].await()) {
+                                Log.w(TAG, "Skipping non-verified key file")
+                                return@async null
+                            }
+                            try {
+                                cacheFile to matchingSlots.withPermit { matchKeyFile(database, cacheFile, hash, rpiIndex, statistics) }
+                            } catch (e: Exception) {
+                                Log.w(TAG, "Failed parsing file", e)
+                                null
                             }
-                            cacheFile.delete()
-                        } catch (e: Exception) {
-                            Log.w(TAG, "Failed parsing file", e)
                         }
                     }
+                    for (matching in matchings) {
+                        val (cacheFile, result) = matching.await() ?: continue
+                        if (result != null) {
+                            try {
+                                val (fileKeys, revisedKeys) = withContext(Dispatchers.IO) { database.storeFileMatching(tid, result) }
+                                keys += fileKeys + revisedKeys
+                                newKeys += fileKeys
+                            } catch (e: Exception) {
+                                Log.w(TAG, "Failed storing matches of file", e)
+                                continue
+                            }
+                        }
+                        // Only delete the file once its matches were stored
+                        cacheFile.delete()
+                    }
                 }
 
                 val time = (System.currentTimeMillis() - start).coerceAtLeast(1).toDouble() / 1000.0
                 Log.d(TAG, "$packageName/$token processed $keys keys ($newKeys new) in ${time}s -> ${(keys.toDouble() / time * 1000).roundToInt().toDouble() / 1000.0} keys/s")
+                Log.d(TAG, "$packageName/$token matching $statistics")
 
                 database.noteAppAction(packageName, "provideDiagnosisKeys", JSONObject().apply {
                     put("request_token", token)
                     put("request_keys_size", params.keys?.size)
                     put("request_keyFiles_size", params.keyFiles?.size)
                     put("request_keys_count", keys)
+                    statistics.writeTo(this)
                 }.toString())
 
                 if (!database.isAppAuthorized(packageName)) {
@@ -461,6 +478,40 @@ class ExposureNotificationServiceImpl(private val context: Context, override val
         }
     }
 
+    /**
+     * Matches the keys of a key file. The file is kept, so it can be deleted once the result was stored.
+     *
+     * @return the result to be stored, or null if the file contains no valid export
+     */
+    private fun matchKeyFile(database: ExposureDatabase, cacheFile: File, hash: ByteArray, rpiIndex: RpiIndex, statistics: MatchingStatistics): ExposureDatabase.FileMatching? {
+        var result: ExposureDatabase.FileMatching? = null
+        ZipFile(cacheFile).use { zip ->
+            for (entry in zip.entries()) {
+                if (entry.name == "export.bin") {
+                    val stream = zip.getInputStream(entry)
+                    val prefix = ByteArray(16)
+                    var totalBytesRead = 0
+                    var bytesRead = 0
+                    while (bytesRead != -1 && totalBytesRead < prefix.size) {
+                        bytesRead = stream.read(prefix, totalBytesRead, prefix.size - totalBytesRead)
+                        if (bytesRead > 0) {
+                            totalBytesRead += bytesRead
+                        }
+                    }
+                    if (totalBytesRead == prefix.size && String(prefix).trim() == "EK Export v1") {
+                        result = database.matchFile(hash, rpiIndex, statistics) { onKey, onRevisedKey ->
+                            readTemporaryExposureKeyExport(stream.source().buffer(), { onKey(it.toKey()) }, { onRevisedKey(it.toKey()) })
+                                    ?.let { it * 1000 } ?: System.currentTimeMillis()
+                        }
+                    } else {
+                        Log.d(TAG, "export.bin had invalid prefix")
+                    }
+                }
+            }
+        }
+        return result
+    }
+
     private fun verifyKeyFile(file: File): Boolean {
         try {
             ZipFile(file).use { zip ->
@@ -798,5 +849,7 @@ class ExposureNotificationServiceImpl(private val context: Context, override val
         private val tempGrantedPermissions: MutableSet<Pair<String, String>> = hashSetOf()
         private const val VERSION = 18
         private const val VERSION_FULL = VERSION.toLong() * 1000000000L + Constants.GMS_VERSION_CODE
+        private const val MAX_PARALLEL_VERIFICATIONS = 2
+        private const val MAX_PARALLEL_FILE_MATCHINGS = 2
     }
 }
@@ -0,0 +1,67 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.nearby.exposurenotification
+
+import org.json.JSONObject
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Counters and per-stage timings of matching diagnosis keys, collected over all key files of a call.
+ *
+ * Timings are summed over all threads working on the stage, so they can exceed the wall clock time of the call.
+ */
+class MatchingStatistics {
+    /** Keys compared against the collected RPIs */
+    val processed = AtomicInteger()
+
+    /** Keys that matched any collected RPI */
+    val found = AtomicInteger()
+
+    /** Keys not compared because they are older than the oldest collected RPI */
+    val ignored = AtomicInteger()
+
+    val verifyTime = AtomicLong()
+    val parseTime = AtomicLong()
+    val matchTime = AtomicLong()
+
+    fun writeTo(json: JSONObject) {
+        json.put(KEY_PROCESSED, processed.get())
+        json.put(KEY_FOUND, found.get())
+        json.put(KEY_IGNORED, ignored.get())
+        json.put(KEY_VERIFY_TIME, verifyTime.get())
+        json.put(KEY_PARSE_TIME, parseTime.get())
+        json.put(KEY_MATCH_TIME, matchTime.get())
+    }
+
+    override fun toString(): String {
+        return "processed=${processed.get()} found=${found.get()} ignored=${ignored.get()} verify=${verifyTime.get()}ms parse=${parseTime.get()}ms match=${matchTime.get()}ms"
+    }
+
+    companion object {
+        private const val KEY_PROCESSED = "matching_processed"
+        private const val KEY_FOUND = "matching_found"
+        private const val KEY_IGNORED = "matching_ignored"
+        private const val KEY_VERIFY_TIME = "matching_verify_ms"
+        private const val KEY_PARSE_TIME = "matching_parse_ms"
+        private const val KEY_MATCH_TIME = "matching_match_ms"
+
+        /**
+         * @return the statistics written to [json] by [writeTo] or null if the call did not record any
+         */
+        fun readFrom(json: JSONObject): MatchingStatistics? {
+            if (!json.has(KEY_PROCESSED)) return null
+            return MatchingStatistics().apply {
+                processed.set(json.optInt(KEY_PROCESSED))
+                found.set(json.optInt(KEY_FOUND))
+                ignored.set(json.optInt(KEY_IGNORED))
+                verifyTime.set(json.optLong(KEY_VERIFY_TIME))
+                parseTime.set(json.optLong(KEY_PARSE_TIME))
+                matchTime.set(json.optLong(KEY_MATCH_TIME))
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.nearby.exposurenotification
+
+/**
+ * Set of observed rolling proximity identifiers, used to quickly rule out diagnosis keys that were never seen.
+ *
+ * RPIs are stored as pairs of longs in an open addressing hash table, so that an index for tens of thousands of
+ * advertisements only takes a few primitive arrays.
+ */
+class RpiIndex(expectedSize: Int) {
+    private val capacity = tableSizeFor(expectedSize)
+    private val mask = capacity - 1
+    private val high = LongArray(capacity)
+    private val low = LongArray(capacity)
+    private val used = BooleanArray(capacity)
+    private val maxSize = capacity / 4 * 3
+
+    var size = 0
+        private set
+
+    /**
+     * Adds the 16 byte RPI at [offset] of [data].
+     */
+    fun add(data: ByteArray, offset: Int = 0) {
+        if (size >= maxSize) throw IllegalStateException("Index is full")
+        val h = data.readLong(offset)
+        val l = data.readLong(offset + 8)
+        var slot = slotFor(h, l)
+        while (used[slot]) {
+            if (high[slot] == h && low[slot] == l) return
+            slot = (slot + 1) and mask
+        }
+        used[slot] = true
+        high[slot] = h
+        low[slot] = l
+        size++
+    }
+
+    /**
+     * @return true if the 16 byte RPI at [offset] of [data] is contained in the index.
+     */
+    fun contains(data: ByteArray, offset: Int = 0): Boolean {
+        val h = data.readLong(offset)
+        val l = data.readLong(offset + 8)
+        var slot = slotFor(h, l)
+        while (used[slot]) {
+            if (high[slot] == h && low[slot] == l) return true
+            slot = (slot + 1) and mask
+        }
+        return false
+    }
+
+    private fun slotFor(h: Long, l: Long): Int {
+        // RPIs are AES output and thus evenly distributed already
+        val hash = h xor l
+        return (hash xor (hash ushr 32)).toInt() and mask
+    }
+
+    companion object {
+        private fun tableSizeFor(expectedSize: Int): Int {
+            // Keep the load factor below 0.75 and always leave free slots for probing to terminate
+            var size = 16
+            while (size / 4 * 3 <= expectedSize) size = size shl 1
+            return size
+        }
+
+        private fun ByteArray.readLong(offset: Int): Long {
+            var value = 0L
+            for (i in 0 until 8) {
+                value = (value shl 8) or (this[offset + i].toLong() and 0xff)
+            }
+            return value
+        }
+    }
+}
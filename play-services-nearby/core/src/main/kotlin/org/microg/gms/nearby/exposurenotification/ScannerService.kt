@@ -21,6 +21,9 @@ import android.util.Log
 import androidx.core.app.PendingIntentCompat
 import androidx.lifecycle.LifecycleService
 import androidx.lifecycle.lifecycleScope
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import org.microg.gms.common.ForegroundServiceContext
 import org.microg.gms.common.ForegroundServiceInfo
 import java.io.FileDescriptor
@@ -43,6 +46,7 @@ class ScannerService : LifecycleService() {
             for (result in results) {
                 onScanResult(result)
             }
+            flushAdvertisements()
         }
 
         override fun onScanFailed(errorCode: Int) {
@@ -62,6 +66,8 @@ class ScannerService : LifecycleService() {
     }
     private val handler = Handler(Looper.getMainLooper())
     private val stopLaterRunnable = Runnable { stopScan() }
+    private val advertisements = AdvertisementBuffer()
+    private val flushRunnable = Runnable { flushAdvertisements() }
 
     // Wake lock for the duration of scan. Otherwise we might fall asleep while scanning
     // resulting in potentially very long scan times
@@ -89,9 +95,24 @@ class ScannerService : LifecycleService() {
         if (data.size < 16) return // Ignore invalid advertisements
         seenAdvertisements++
         lastAdvertisement = System.currentTimeMillis()
-        lifecycleScope.launchWhenStarted {
-            ExposureDatabase.with(this@ScannerService) { database ->
-                database.noteAdvertisement(data.sliceArray(0..15), data.drop(16).toByteArray(), result.rssi)
+        if (advertisements.add(data.sliceArray(0..15), data.drop(16).toByteArray(), result.rssi, lastAdvertisement)) {
+            handler.postDelayed(flushRunnable, ADVERTISEMENT_FLUSH_INTERVAL_MS)
+        }
+    }
+
+    /**
+     * Writes buffered advertisements to the database in one transaction.
+     */
+    private fun flushAdvertisements() {
+        handler.removeCallbacks(flushRunnable)
+        val entries = advertisements.drain()
+        if (entries.isEmpty()) return
+        lifecycleScope.launch {
+            // Complete the write even if the service is destroyed meanwhile, advertisements would be lost otherwise
+            withContext(NonCancellable) {
+                ExposureDatabase.with(this@ScannerService) { database ->
+                    database.noteAdvertisements(entries)
+                }
             }
         }
     }
@@ -110,9 +131,10 @@ class ScannerService : LifecycleService() {
     }
 
     override fun onDestroy() {
-        super.onDestroy()
         unregisterReceiver(trigger)
         stopScan()
+        flushAdvertisements()
+        super.onDestroy()
     }
 
     @SuppressLint("WakelockTimeout", "MissingPermission")
@@ -152,6 +174,7 @@ class ScannerService : LifecycleService() {
         } catch (e: Exception) {
             // Ignored
         }
+        flushAdvertisements()
         if (ExposurePreferences(this).enabled) {
             scheduleStartScan(((lastStartTime + SCANNING_INTERVAL_MS) - System.currentTimeMillis()).coerceIn(0, SCANNING_INTERVAL_MS))
         }
@@ -177,9 +200,13 @@ class ScannerService : LifecycleService() {
         }
         writer?.println("Seen advertisements since last scan start: $seenAdvertisements")
         writer?.println("Last advertisement seen: ${Date(lastAdvertisement)}")
+        writer?.println("Advertisements pending to be written: ${advertisements.size}")
     }
 
     companion object {
+        // Advertisements are written at least this often while scanning
+        private const val ADVERTISEMENT_FLUSH_INTERVAL_MS = 10 * 1000L
+
         fun isNeeded(context: Context): Boolean {
             return ExposurePreferences(context).enabled
         }
@@ -0,0 +1,37 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.nearby.exposurenotification
+
+import com.squareup.wire.ProtoAdapter
+import com.squareup.wire.ProtoReader
+import okio.BufferedSource
+import org.microg.gms.nearby.exposurenotification.proto.TemporaryExposureKeyProto
+
+private const val TAG_END_TIMESTAMP = 2
+private const val TAG_KEYS = 7
+private const val TAG_REVISED_KEYS = 8
+
+/**
+ * Reads a `TemporaryExposureKeyExport` key by key, so that the export never needs to be held in memory completely.
+ *
+ * @return the end timestamp of the export in seconds, if present
+ */
+fun readTemporaryExposureKeyExport(source: BufferedSource, onKey: (TemporaryExposureKeyProto) -> Unit, onRevisedKey: (TemporaryExposureKeyProto) -> Unit): Long? {
+    val reader = ProtoReader(source)
+    val token = reader.beginMessage()
+    var endTimestamp: Long? = null
+    while (true) {
+        when (reader.nextTag()) {
+            -1 -> break
+            TAG_END_TIMESTAMP -> endTimestamp = ProtoAdapter.FIXED64.decode(reader)
+            TAG_KEYS -> onKey(TemporaryExposureKeyProto.ADAPTER.decode(reader))
+            TAG_REVISED_KEYS -> onRevisedKey(TemporaryExposureKeyProto.ADAPTER.decode(reader))
+            else -> reader.skip()
+        }
+    }
+    reader.endMessageAndGetUnknownFields(token)
+    return endTimestamp
+}
@@ -21,6 +21,7 @@ import com.google.android.gms.nearby.exposurenotification.ExposureConfiguration
 import org.json.JSONObject
 import org.microg.gms.nearby.core.R
 import org.microg.gms.nearby.exposurenotification.ExposureDatabase
+import org.microg.gms.nearby.exposurenotification.MatchingStatistics
 import org.microg.gms.nearby.exposurenotification.merge
 
 class ExposureNotificationsAppPreferencesFragment : PreferenceFragmentCompat() {
@@ -79,19 +80,21 @@ class ExposureNotificationsAppPreferencesFragment : PreferenceFragmentCompat() {
     fun updateContent() {
         packageName?.let { packageName ->
             lifecycleScope.launchWhenResumed {
-                data class NTuple4<T1, T2, T3, T4>(val t1: T1, val t2: T2, val t3: T3, val t4: T4)
-                val (mergedExposures, keysInvolved, lastCheckTime, methodUsageHistogram) = ExposureDatabase.with(requireContext()) { database ->
+                data class NTuple5<T1, T2, T3, T4, T5>(val t1: T1, val t2: T2, val t3: T3, val t4: T4, val t5: T5)
+                val (mergedExposures, keysInvolved, lastCheckTime, methodUsageHistogram, statistics) = ExposureDatabase.with(requireContext()) { database ->
                     val methodUsageHistogram = database.methodUsageHistogram(packageName)
 
-                    val token = database.lastMethodCallArgs(packageName, "provideDiagnosisKeys")?.let { JSONObject(it).getString("request_token") }
-                            ?: return@with NTuple4(null, null, null, methodUsageHistogram)
+                    val lastCallArgs = database.lastMethodCallArgs(packageName, "provideDiagnosisKeys")?.let { JSONObject(it) }
+                    val token = lastCallArgs?.getString("request_token")
+                            ?: return@with NTuple5(null, null, null, methodUsageHistogram, null)
+                    val statistics = MatchingStatistics.readFrom(lastCallArgs)
                     val lastCheckTime = database.lastMethodCall(packageName, "provideDiagnosisKeys")
-                            ?: return@with NTuple4(null, null, null, methodUsageHistogram)
+                            ?: return@with NTuple5(null, null, null, methodUsageHistogram, null)
                     val config = database.loadConfiguration(packageName, token)
-                            ?: return@with NTuple4(null, null, null, methodUsageHistogram)
+                            ?: return@with NTuple5(null, null, null, methodUsageHistogram, null)
                     val mergedExposures = database.findAllMeasuredExposures(config.first).merge().sortedBy { it.timestamp }
                     val keysInvolved = database.countDiagnosisKeysInvolved(config.first)
-                    NTuple4(mergedExposures, keysInvolved, lastCheckTime, methodUsageHistogram)
+                    NTuple5(mergedExposures, keysInvolved, lastCheckTime, methodUsageHistogram, statistics)
                 }
 
                 reportedExposures.removeAll()
@@ -123,8 +126,15 @@ class ExposureNotificationsAppPreferencesFragment : PreferenceFragmentCompat() {
 
                 reportedExposuresUpdated.isVisible = lastCheckTime != null
                 reportedExposuresUpdated.title = if (lastCheckTime != null) getString(R.string.pref_exposure_app_report_updated_title, DateUtils.getRelativeDateTimeString(requireContext(), lastCheckTime, DateUtils.DAY_IN_MILLIS, DateUtils.DAY_IN_MILLIS * 2, 0)) else null
-                reportedExposuresUpdated.summary = getString(R.string.pref_exposure_app_last_report_summary_diagnosis_keys, keysInvolved?.toInt()
+                val keysSummary = getString(R.string.pref_exposure_app_last_report_summary_diagnosis_keys, keysInvolved?.toInt()
                         ?: 0)
+                reportedExposuresUpdated.summary = if (statistics != null) {
+                    keysSummary + "\n" + getString(R.string.pref_exposure_app_last_report_summary_matching,
+                            statistics.processed.get(), statistics.found.get(), statistics.ignored.get(),
+                            statistics.verifyTime.get(), statistics.parseTime.get(), statistics.matchTime.get())
+                } else {
+                    keysSummary
+                }
                 reportedExposures.addPreference(reportedExposuresUpdated)
 
                 val apiUsageSummary = methodUsageHistogram.map {
@@ -0,0 +1,60 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.nearby.exposurenotification;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class AdvertisementBufferTest extends TestCase {
+    private static final byte[] AEM = new byte[4];
+
+    private static byte[] rpi(int id) {
+        byte[] rpi = new byte[16];
+        rpi[15] = (byte) id;
+        return rpi;
+    }
+
+    public void testMergesSightingsOfSameRpi() {
+        AdvertisementBuffer buffer = new AdvertisementBuffer();
+        assertTrue(buffer.add(rpi(1), AEM, -60, 1000));
+        assertFalse(buffer.add(Arrays.copyOf(rpi(1), 16), AEM, -70, 2000));
+        assertFalse(buffer.add(rpi(1), AEM, -80, 5000));
+        assertEquals(1, buffer.getSize());
+
+        List<AdvertisementBuffer.Entry> entries = buffer.drain();
+        assertEquals(1, entries.size());
+        AdvertisementBuffer.Entry entry = entries.get(0);
+        assertEquals(1000, entry.getFirstTimestamp());
+        assertEquals(-60, entry.getFirstRssi());
+        assertEquals(5000, entry.getLastTimestamp());
+        // -70 for 1s, -80 for 3s
+        assertEquals(-77, entry.getLastRssi());
+    }
+
+    public void testKeepsOrderOfDistinctRpis() {
+        AdvertisementBuffer buffer = new AdvertisementBuffer();
+        buffer.add(rpi(2), AEM, -60, 1000);
+        buffer.add(rpi(1), AEM, -60, 1000);
+        buffer.add(rpi(2), AEM, -60, 2000);
+
+        List<AdvertisementBuffer.Entry> entries = buffer.drain();
+        assertEquals(2, entries.size());
+        assertTrue(Arrays.equals(rpi(2), entries.get(0).getRpi()));
+        assertTrue(Arrays.equals(rpi(1), entries.get(1).getRpi()));
+        assertEquals(entries.get(1).getFirstTimestamp(), entries.get(1).getLastTimestamp());
+    }
+
+    public void testDrainEmptiesBuffer() {
+        AdvertisementBuffer buffer = new AdvertisementBuffer();
+        buffer.add(rpi(1), AEM, -60, 1000);
+        buffer.drain();
+        assertEquals(0, buffer.getSize());
+        assertTrue(buffer.drain().isEmpty());
+        assertTrue(buffer.add(rpi(1), AEM, -60, 2000));
+    }
+}
@@ -61,4 +61,30 @@ public class CryptoTest extends TestCase {
             Assert.assertArrayEquals(gen, ref);
         }
     }
+
+    public void testGenerateAllRpiIdsIntoBuffer() {
+        int length = TestVectors.KEY_ROLLING_PERIOD_MULTIPLE_OF_ID_PERIOD * 16;
+        byte[] buffer = new byte[length + 32];
+        CryptoKt.generateAllRpiIds(key, buffer, 16);
+        Assert.assertArrayEquals(CryptoKt.generateAllRpiIds(key), Arrays.copyOfRange(buffer, 16, 16 + length));
+        for (int i = 0; i < TestVectors.KEY_ROLLING_PERIOD_MULTIPLE_OF_ID_PERIOD; i++) {
+            Assert.assertArrayEquals(Arrays.copyOfRange(buffer, 16 + i * 16, 32 + i * 16), TestVectors.ADVERTISED_DATA.get(i).get_RPI());
+        }
+    }
+
+    public void testGenerateAllRpiIdsReusedBuffer() {
+        byte[] otherKeyData = TestVectors.get_TEMPORARY_TRACING_KEY();
+        otherKeyData[0] ^= 1;
+        TemporaryExposureKey otherKey = new TemporaryExposureKey.TemporaryExposureKeyBuilder()
+                .setKeyData(otherKeyData)
+                .setRollingStartIntervalNumber(TestVectors.CTINTERVAL_NUMBER_OF_GENERATED_KEY)
+                .setRollingPeriod(TestVectors.KEY_ROLLING_PERIOD_MULTIPLE_OF_ID_PERIOD)
+                .build();
+        byte[] expected = CryptoKt.generateAllRpiIds(key);
+        byte[] buffer = new byte[expected.length];
+        CryptoKt.generateAllRpiIds(otherKey, buffer, 0);
+        Assert.assertArrayEquals(CryptoKt.generateAllRpiIds(otherKey), buffer);
+        CryptoKt.generateAllRpiIds(key, buffer, 0);
+        Assert.assertArrayEquals(expected, buffer);
+    }
 }
@@ -0,0 +1,57 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.nearby.exposurenotification;
+
+import com.google.android.gms.nearby.exposurenotification.TemporaryExposureKey;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class RpiIndexTest extends TestCase {
+
+    public void testContainsAdded() {
+        Random random = new Random(1);
+        byte[][] rpis = new byte[1000][16];
+        RpiIndex index = new RpiIndex(rpis.length);
+        for (byte[] rpi : rpis) {
+            random.nextBytes(rpi);
+            index.add(rpi, 0);
+        }
+        assertEquals(rpis.length, index.getSize());
+        for (byte[] rpi : rpis) {
+            assertTrue(index.contains(rpi, 0));
+        }
+        byte[] other = new byte[16];
+        for (int i = 0; i < 1000; i++) {
+            random.nextBytes(other);
+            assertFalse(index.contains(other, 0));
+        }
+    }
+
+    public void testAddDuplicate() {
+        RpiIndex index = new RpiIndex(2);
+        byte[] rpi = TestVectors.ADVERTISED_DATA.get(0).get_RPI();
+        index.add(rpi, 0);
+        index.add(Arrays.copyOf(rpi, rpi.length), 0);
+        assertEquals(1, index.getSize());
+    }
+
+    public void testContainsGeneratedRpis() {
+        TemporaryExposureKey key = new TemporaryExposureKey.TemporaryExposureKeyBuilder()
+                .setKeyData(TestVectors.get_TEMPORARY_TRACING_KEY())
+                .setRollingStartIntervalNumber(TestVectors.CTINTERVAL_NUMBER_OF_GENERATED_KEY)
+                .setRollingPeriod(TestVectors.KEY_ROLLING_PERIOD_MULTIPLE_OF_ID_PERIOD)
+                .build();
+        RpiIndex index = new RpiIndex(1);
+        index.add(TestVectors.ADVERTISED_DATA.get(5).get_RPI(), 0);
+        byte[] all = CryptoKt.generateAllRpiIds(key);
+        for (int i = 0; i < key.getRollingPeriod(); i++) {
+            assertEquals(i == 5, index.contains(all, i * 16));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.nearby.exposurenotification;
+
+import com.google.android.gms.nearby.exposurenotification.TemporaryExposureKey;
+import com.squareup.wire.ProtoAdapter;
+import com.squareup.wire.ProtoWriter;
+
+import junit.framework.TestCase;
+
+import org.microg.gms.nearby.exposurenotification.proto.TemporaryExposureKeyProto;
+
+import java.io.IOException;
+import java.util.Random;
+
+import kotlin.Unit;
+import okio.Buffer;
+import okio.ByteString;
+
+/**
+ * Reads a generated key export and checks its diagnosis keys against observed RPIs, the same way key files are matched
+ * when only few keys match. Sized so that the test report's duration gives the throughput of matching.
+ */
+public class RpiMatchingBenchmarkTest extends TestCase {
+    private static final int OBSERVED_RPIS = 50000;
+    private static final int KEYS = 5000;
+    private static final int REVISED_KEYS = 50;
+    private static final int MATCH_EVERY = 100;
+    private static final int ROLLING_PERIOD = 144;
+    private static final int ROLLING_START = 2650000;
+    private static final long END_TIMESTAMP = 1600000000L;
+
+    private static void writeKey(ProtoWriter writer, int tag, byte[] keyData) throws IOException {
+        Buffer key = new Buffer();
+        ProtoWriter keyWriter = new ProtoWriter(key);
+        ProtoAdapter.BYTES.encodeWithTag(keyWriter, 1, ByteString.of(keyData));
+        ProtoAdapter.INT32.encodeWithTag(keyWriter, 3, ROLLING_START);
+        ProtoAdapter.INT32.encodeWithTag(keyWriter, 4, ROLLING_PERIOD);
+        ProtoAdapter.BYTES.encodeWithTag(writer, tag, key.readByteString());
+    }
+
+    private static TemporaryExposureKey toKey(TemporaryExposureKeyProto proto) {
+        return new TemporaryExposureKey.TemporaryExposureKeyBuilder()
+                .setKeyData(proto.key_data.toByteArray())
+                .setRollingStartIntervalNumber(proto.rolling_start_interval_number)
+                .setRollingPeriod(proto.rolling_period)
+                .build();
+    }
+
+    public void testMatchExport() throws IOException {
+        Random random = new Random(1);
+        byte[][] keyData = new byte[KEYS][16];
+        Buffer export = new Buffer();
+        ProtoWriter writer = new ProtoWriter(export);
+        ProtoAdapter.FIXED64.encodeWithTag(writer, 2, END_TIMESTAMP);
+        for (byte[] data : keyData) {
+            random.nextBytes(data);
+            writeKey(writer, 7, data);
+        }
+        for (int i = 0; i < REVISED_KEYS; i++) {
+            writeKey(writer, 8, keyData[i]);
+        }
+
+        RpiIndex index = new RpiIndex(OBSERVED_RPIS + KEYS / MATCH_EVERY);
+        byte[] rpi = new byte[16];
+        for (int i = 0; i < OBSERVED_RPIS; i++) {
+            random.nextBytes(rpi);
+            index.add(rpi, 0);
+        }
+        for (int i = 0; i < KEYS; i += MATCH_EVERY) {
+            TemporaryExposureKey key = new TemporaryExposureKey.TemporaryExposureKeyBuilder()
+                    .setKeyData(keyData[i])
+                    .setRollingStartIntervalNumber(ROLLING_START)
+                    .setRollingPeriod(ROLLING_PERIOD)
+                    .build();
+            index.add(CryptoKt.generateAllRpiIds(key), (i % ROLLING_PERIOD) * 16);
+        }
+
+        byte[] allRpis = new byte[ROLLING_PERIOD * 16];
+        int[] counts = new int[3];
+        Long endTimestamp = TemporaryExposureKeyExportReaderKt.readTemporaryExposureKeyExport(export, proto -> {
+            counts[0]++;
+            CryptoKt.generateAllRpiIds(toKey(proto), allRpis, 0);
+            for (int interval = 0; interval < ROLLING_PERIOD; interval++) {
+                if (index.contains(allRpis, interval * 16)) {
+                    counts[1]++;
+                    break;
+                }
+            }
+            return Unit.INSTANCE;
+        }, proto -> {
+            counts[2]++;
+            return Unit.INSTANCE;
+        });
+
+        assertEquals(Long.valueOf(END_TIMESTAMP), endTimestamp);
+        assertEquals(KEYS, counts[0]);
+        assertEquals(KEYS / MATCH_EVERY, counts[1]);
+        assertEquals(REVISED_KEYS, counts[2]);
+        assertTrue(export.exhausted());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.wearable;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.google.android.gms.wearable.Asset;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares reads on 50k data items with the queries on the dataItemsAndAssets view that were used before.
+ */
+public class NodeDatabaseHelperBenchmark extends TestCase {
+    private static final String TAG = "GmsWearNodeDBBench";
+    private static final String DB_NAME = "node-benchmark.db";
+    private static final int ITEMS = 50000;
+    private static final int ASSET_EVERY = 10;
+    private static final int ASSETS = 100;
+    private static final int LOOKUPS = 1000;
+    private static final String PACKAGE_NAME = "org.example.wear";
+    private static final String SIGNATURE_DIGEST = "0123456789abcdef";
+    private static final String OTHER_PACKAGE_NAME = "org.example.other";
+    private static final String HOST = "node";
+
+    private Context context;
+    private NodeDatabaseHelper database;
+
+    @Override
+    protected void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DB_NAME);
+        database = new NodeDatabaseHelper(context, DB_NAME);
+        for (int i = 0; i < ASSETS; i++) {
+            database.putAsset(Asset.createFromRef(digest(i)), true);
+        }
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ITEMS; i++) {
+                // Some items of another app, which must not show up in the results
+                database.putRecord(record(i % 20 == 19 ? OTHER_PACKAGE_NAME : PACKAGE_NAME, i));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    protected void tearDown() {
+        database.close();
+        context.deleteDatabase(DB_NAME);
+    }
+
+    private static String digest(int i) {
+        return "digest" + i;
+    }
+
+    private static String path(int i) {
+        return "/items/" + (i % 100) + "/" + i;
+    }
+
+    private static DataItemRecord record(String packageName, int i) {
+        DataItemRecord record = new DataItemRecord();
+        record.packageName = packageName;
+        record.signatureDigest = SIGNATURE_DIGEST;
+        record.dataItem = new DataItemInternal(HOST, path(i));
+        record.dataItem.data = new byte[64];
+        if (i % ASSET_EVERY == 0) {
+            record.dataItem.addAsset("asset", Asset.createFromRef(digest(i % ASSETS)));
+        }
+        record.source = HOST;
+        record.seqId = i + 1;
+        record.v1SeqId = record.seqId;
+        record.lastModified = i;
+        record.assetsAreReady = true;
+        return record;
+    }
+
+    private static int count(Cursor cursor) {
+        try {
+            int count = 0;
+            while (cursor.moveToNext()) count++;
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private interface Query {
+        int run(int i);
+    }
+
+    /**
+     * @return the result of the last run of the query
+     */
+    private static int measure(String name, int runs, Query before, Query after) {
+        int beforeResult = 0;
+        int afterResult = 0;
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < runs; i++) beforeResult = before.run(i);
+        long beforeNanos = SystemClock.elapsedRealtimeNanos() - start;
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < runs; i++) afterResult = after.run(i);
+        long afterNanos = SystemClock.elapsedRealtimeNanos() - start;
+        Log.i(TAG, name + ": before " + (beforeNanos / runs / 1000) + "µs, after " + (afterNanos / runs / 1000) + "µs per query");
+        assertEquals(name, beforeResult, afterResult);
+        return afterResult;
+    }
+
+    public void testDataHolderQueries() {
+        final SQLiteDatabase db = database.getReadableDatabase();
+        int all = measure("all items for data holder", 5,
+                i -> count(db.rawQuery("SELECT host, path, data, '' AS tags, assetname AS asset_key, assets_digest AS asset_id FROM dataItemsAndAssets WHERE packageName = ? AND signatureDigest = ? AND deleted=0 AND assetsPresent !=0", new String[]{PACKAGE_NAME, SIGNATURE_DIGEST})),
+                i -> count(database.getDataItemsForDataHolder(PACKAGE_NAME, SIGNATURE_DIGEST)));
+        assertEquals(ITEMS - ITEMS / 20, all);
+
+        int prefix = measure("items by path prefix for data holder", 20,
+                i -> count(db.rawQuery("SELECT host, path, data, '' AS tags, assetname AS asset_key, assets_digest AS asset_id FROM dataItemsAndAssets WHERE packageName = ? AND signatureDigest = ? AND host = ? AND path LIKE ? AND deleted=0 AND assetsPresent !=0", new String[]{PACKAGE_NAME, SIGNATURE_DIGEST, HOST, "/items/" + i + "/%"})),
+                i -> count(database.getDataItemsForDataHolderByHostAndPath(PACKAGE_NAME, SIGNATURE_DIGEST, HOST, "/items/" + i + "/")));
+        assertTrue(prefix > 0);
+    }
+
+    public void testItemLookups() {
+        final SQLiteDatabase db = database.getReadableDatabase();
+        measure("item by host and path", LOOKUPS,
+                i -> count(db.rawQuery("SELECT * FROM dataItemsAndAssets WHERE packageName =? AND signatureDigest =? AND host =? AND path =? AND deleted=0", new String[]{PACKAGE_NAME, SIGNATURE_DIGEST, HOST, path(i * 20)})),
+                i -> count(database.getDataItemsByHostAndPath(PACKAGE_NAME, SIGNATURE_DIGEST, HOST, path(i * 20))));
+
+        Cursor cursor = database.getDataItemsByHostAndPath(PACKAGE_NAME, SIGNATURE_DIGEST, HOST, path(0));
+        try {
+            assertTrue(cursor.moveToNext());
+            DataItemRecord record = DataItemRecord.fromCursor(cursor);
+            assertEquals(PACKAGE_NAME, record.packageName);
+            assertEquals(SIGNATURE_DIGEST, record.signatureDigest);
+            assertEquals(digest(0), record.dataItem.getAssets().get("asset").getDigest());
+        } finally {
+            cursor.close();
+        }
+        assertEquals(0, count(database.getDataItemsByHostAndPath("org.example.unknown", SIGNATURE_DIGEST, HOST, path(0))));
+    }
+
+    public void testCurrentSeqId() {
+        final SQLiteDatabase db = database.getReadableDatabase();
+        measure("current seqId", LOOKUPS,
+                i -> (int) DatabaseUtils.longForQuery(db, "SELECT seqId FROM dataItemsAndAssets WHERE sourceNode =? ORDER BY seqId DESC LIMIT 1", new String[]{HOST}),
+                i -> (int) database.getCurrentSeqId(HOST));
+        assertEquals(ITEMS, database.getCurrentSeqId(HOST));
+    }
+}
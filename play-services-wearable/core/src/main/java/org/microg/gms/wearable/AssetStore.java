@@ -0,0 +1,266 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.wearable;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.microg.wearable.proto.FilePiece;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import okio.ByteString;
+
+/**
+ * Stores asset files, named by their digest.
+ * <p>
+ * Assets are digested while they are written, so they never need to be held in memory completely. Assets received from a
+ * peer in pieces keep their file open until the final piece arrived. Transfers are tracked per peer node, so that a peer
+ * disconnecting only affects its own transfers.
+ * <p>
+ * File pieces carry no offset, so an interrupted transfer can't be continued. Peers send the complete asset again, and
+ * the partial file of an interrupted transfer is discarded.
+ */
+public class AssetStore {
+    private static final String TAG = "GmsWearAssets";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Piece size used by other implementations
+    static final int PIECE_SIZE = 12215;
+
+    interface PieceWriter {
+        void write(FilePiece piece) throws IOException;
+    }
+
+    private static class Transfer {
+        final String nodeId;
+        final File file;
+        final FileOutputStream stream;
+        final MessageDigest digest;
+
+        Transfer(String nodeId, File file) throws IOException {
+            this.nodeId = nodeId;
+            this.file = file;
+            this.digest = newDigest();
+            this.stream = new FileOutputStream(file);
+        }
+
+        void write(ByteString piece) throws IOException {
+            ByteBuffer buffer = piece.asByteBuffer();
+            digest.update(buffer.duplicate());
+            FileChannel channel = stream.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        void close() {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                Log.w(TAG, e);
+            }
+        }
+
+        void discard() {
+            close();
+            file.delete();
+        }
+    }
+
+    private final File filesDir;
+    private final Map<String, Transfer> transfers = new HashMap<>();
+
+    public AssetStore(Context context) {
+        this(context.getFilesDir());
+    }
+
+    AssetStore(File filesDir) {
+        this.filesDir = filesDir;
+    }
+
+    public File getAssetFile(String digest) {
+        File dir = new File(new File(filesDir, "assets"), digest.substring(digest.length() - 2));
+        dir.mkdirs();
+        return new File(dir, digest + ".asset");
+    }
+
+    private File getReceiveTempFile(String nodeId, String name) {
+        File dir = new File(filesDir, "piece");
+        dir.mkdirs();
+        return new File(dir, Integer.toHexString(nodeId.hashCode()) + "-" + name);
+    }
+
+    private static String getTransferKey(String nodeId, String fileName) {
+        return nodeId + "/" + fileName;
+    }
+
+    /**
+     * Stores the asset read from the stream.
+     *
+     * @return the digest of the asset or null if it could not be stored
+     */
+    public String store(InputStream in) {
+        File dir = new File(filesDir, "assets");
+        dir.mkdirs();
+        File tmpFile = null;
+        try {
+            tmpFile = File.createTempFile("asset", ".tmp", dir);
+            MessageDigest digest = newDigest();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                }
+            }
+            String name = encodeDigest(digest);
+            return moveToAssetFile(tmpFile, name) ? name : null;
+        } catch (IOException e) {
+            Log.w(TAG, e);
+            if (tmpFile != null) tmpFile.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Stores the asset from memory.
+     *
+     * @return the digest of the asset or null if it could not be stored
+     */
+    public String store(byte[] data) {
+        String digest = calculateDigest(data);
+        File assetFile = getAssetFile(digest);
+        if (assetFile.exists()) return digest;
+        File tmpFile = new File(assetFile.getParent(), assetFile.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            out.write(data);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+            tmpFile.delete();
+            return null;
+        }
+        return moveToAssetFile(tmpFile, digest) ? digest : null;
+    }
+
+    private boolean moveToAssetFile(File tmpFile, String digest) {
+        File assetFile = getAssetFile(digest);
+        if (assetFile.exists()) {
+            // Same content was stored before
+            tmpFile.delete();
+            return true;
+        }
+        if (tmpFile.renameTo(assetFile)) return true;
+        Log.w(TAG, "Could not rename to asset file " + assetFile + ". delete=" + tmpFile.delete());
+        return false;
+    }
+
+    /**
+     * Appends a piece of an asset received from a peer.
+     *
+     * @param finalPieceDigest the digest of the complete asset if this is the final piece, null otherwise
+     * @return true if this was the final piece and the asset was stored successfully
+     */
+    public synchronized boolean appendPiece(String nodeId, String fileName, ByteString piece, String finalPieceDigest) {
+        String key = getTransferKey(nodeId, fileName);
+        Transfer transfer = transfers.get(key);
+        try {
+            if (transfer == null) {
+                transfer = new Transfer(nodeId, getReceiveTempFile(nodeId, fileName));
+                transfers.put(key, transfer);
+            }
+            transfer.write(piece);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed writing piece of " + fileName + " from " + nodeId, e);
+            if (transfer != null) {
+                transfers.remove(key);
+                transfer.discard();
+            }
+            return false;
+        }
+        if (finalPieceDigest == null) return false;
+
+        // This is a final piece. If digest matches we're so happy!
+        transfers.remove(key);
+        transfer.close();
+        String digest = encodeDigest(transfer.digest);
+        if (!digest.equals(finalPieceDigest)) {
+            Log.w(TAG, "Received digest does not match. delete=" + transfer.file.delete());
+            return false;
+        }
+        return moveToAssetFile(transfer.file, digest);
+    }
+
+    /**
+     * Discards all incomplete transfers from the given peer. The peer sends these assets from the start again.
+     */
+    public synchronized void closeTransfers(String nodeId) {
+        Iterator<Transfer> iterator = transfers.values().iterator();
+        while (iterator.hasNext()) {
+            Transfer transfer = iterator.next();
+            if (transfer.nodeId.equals(nodeId)) {
+                transfer.discard();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Splits the asset file into pieces for sending to a peer. The file is read through a single reused buffer.
+     */
+    static void writePieces(File file, String fileName, String digest, PieceWriter writer) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            long remaining = in.getChannel().size();
+            byte[] buffer = new byte[PIECE_SIZE];
+            do {
+                int length = (int) Math.min(buffer.length, remaining);
+                int read = 0;
+                while (read < length) {
+                    int count = in.read(buffer, read, length - read);
+                    if (count < 0) throw new IOException("Asset file " + file + " was truncated");
+                    read += count;
+                }
+                remaining -= length;
+                boolean finalPiece = remaining <= 0;
+                // Pieces are encoded right away, but ByteString needs its own copy as it's immutable
+                writer.write(new FilePiece(fileName, finalPiece, ByteString.of(buffer, 0, length), finalPiece ? digest : null));
+            } while (remaining > 0);
+        }
+    }
+
+    public static String calculateDigest(byte[] data) {
+        MessageDigest digest = newDigest();
+        digest.update(data);
+        return encodeDigest(digest);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String encodeDigest(MessageDigest digest) {
+        // URL safe Base64 without padding
+        String encoded = ByteString.of(digest.digest()).base64Url();
+        int end = encoded.length();
+        while (end > 0 && encoded.charAt(end - 1) == '=') end--;
+        return encoded.substring(0, end);
+    }
+}
@@ -124,13 +124,13 @@ public class MessageHandler extends ServerMessageListener {
         boolean hasLocalNode = false;
         if (syncStart.syncTable != null) {
             for (SyncTableEntry entry : syncStart.syncTable) {
-                wearable.syncToPeer(peerNodeId, entry.key, entry.value);
+                wearable.postSyncToPeer(peerNodeId, entry.key, entry.value);
                 if (wearable.getLocalNodeId().equals(entry.key)) hasLocalNode = true;
             }
         } else {
             Log.d(TAG, "No sync table given.");
         }
-        if (!hasLocalNode) wearable.syncToPeer(peerNodeId, wearable.getLocalNodeId(), 0);
+        if (!hasLocalNode) wearable.postSyncToPeer(peerNodeId, wearable.getLocalNodeId(), 0);
     }
 
     @Override
@@ -170,7 +170,7 @@ public class MessageHandler extends ServerMessageListener {
     @Override
     public void onFilePiece(FilePiece filePiece) {
         Log.d(TAG, "onFilePiece: " + filePiece);
-        wearable.handleFilePiece(getConnection(), filePiece.fileName, filePiece.piece.toByteArray(), filePiece.finalPiece ? filePiece.digest : null);
+        wearable.handleFilePiece(getConnection(), peerNodeId != null ? peerNodeId : oldConfigNodeId, filePiece.fileName, filePiece.piece, filePiece.finalPiece ? filePiece.digest : null);
     }
 
     @Override
@@ -20,13 +20,16 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.android.gms.wearable.Asset;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -35,12 +38,20 @@ public class NodeDatabaseHelper extends SQLiteOpenHelper {
 
     private static final String DB_NAME = "node.db";
     private static final String[] GDIBHAP_FIELDS = new String[]{"dataitems_id", "packageName", "signatureDigest", "host", "path", "seqId", "deleted", "sourceNode", "data", "timestampMs", "assetsPresent", "assetname", "assets_digest", "v1SourceNode", "v1SeqId"};
-    private static final int VERSION = 9;
+    private static final String DATA_ITEMS_AND_ASSETS = "dataitems LEFT OUTER JOIN assetrefs ON dataitems._id=assetrefs.dataitems_id";
+    private static final int VERSION = 10;
 
     private ClockworkNodePreferences clockworkNodePreferences;
+    private SQLiteStatement appKeyStatement;
+    private SQLiteStatement insertNodeInfoStatement;
+    private SQLiteStatement updateNodeInfoStatement;
 
     public NodeDatabaseHelper(Context context) {
-        super(context, DB_NAME, null, VERSION);
+        this(context, DB_NAME);
+    }
+
+    NodeDatabaseHelper(Context context, String name) {
+        super(context, name, null, VERSION);
         clockworkNodePreferences = new ClockworkNodePreferences(context);
     }
 
@@ -63,32 +74,46 @@ public class NodeDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("CREATE UNIQUE INDEX dataitems_APPKEY_HOST_AND_PATH ON dataitems(appkeys_id,host,path);");
         db.execSQL("CREATE UNIQUE INDEX dataitems_SOURCENODE_AND_SEQID ON dataitems(sourceNode,seqId);");
         db.execSQL("CREATE UNIQUE INDEX dataitems_SOURCENODE_DELETED_AND_SEQID ON dataitems(sourceNode,deleted,seqId);");
+        createVersion10(db);
+    }
+
+    private void createVersion10(SQLiteDatabase db) {
+        // Covers the join of data items and their assets
+        db.execSQL("CREATE INDEX IF NOT EXISTS assetrefs_DATAITEM ON assetrefs(dataitems_id,assetname,assets_digest);");
+        // Reads resolve the app key first and then only select non-deleted items of that app key
+        db.execSQL("CREATE INDEX IF NOT EXISTS dataitems_APPKEY_DELETED_HOST_AND_PATH ON dataitems(appkeys_id,deleted,host,path);");
     }
 
     public synchronized Cursor getDataItemsForDataHolder(String packageName, String signatureDigest) {
         return getDataItemsForDataHolderByHostAndPath(packageName, signatureDigest, null, null);
     }
 
+    /**
+     * Data items are selected by the id of their app key instead of joining the app keys, so that only data items and
+     * their asset refs are joined, both through an index.
+     */
     public synchronized Cursor getDataItemsForDataHolderByHostAndPath(String packageName, String signatureDigest, String host, String path) {
+        SQLiteDatabase db = getReadableDatabase();
+        String appKey = Long.toString(findAppKey(db, packageName, signatureDigest));
         String[] params;
         String selection;
         if (path == null) {
-            params = new String[]{packageName, signatureDigest};
-            selection = "packageName = ? AND signatureDigest = ?";
+            params = new String[]{appKey};
+            selection = "appkeys_id = ?";
         } else if (TextUtils.isEmpty(host)) {
             if (path.endsWith("/")) path = path + "%";
             path = path.replace("*", "%");
-            params = new String[]{packageName, signatureDigest, path};
-            selection = "packageName = ? AND signatureDigest = ? AND path LIKE ?";
+            params = new String[]{appKey, path};
+            selection = "appkeys_id = ? AND path LIKE ?";
         } else {
             if (path.endsWith("/")) path = path + "%";
             path = path.replace("*", "%");
             host = host.replace("*", "%");
-            params = new String[]{packageName, signatureDigest, host, path};
-            selection = "packageName = ? AND signatureDigest = ? AND host = ? AND path LIKE ?";
+            params = new String[]{appKey, host, path};
+            selection = "appkeys_id = ? AND host = ? AND path LIKE ?";
         }
         selection += " AND deleted=0 AND assetsPresent !=0";
-        return getReadableDatabase().rawQuery("SELECT host AS host,path AS path,data AS data,\'\' AS tags,assetname AS asset_key,assets_digest AS asset_id FROM dataItemsAndAssets WHERE " + selection, params);
+        return db.rawQuery("SELECT host AS host,path AS path,data AS data,\'\' AS tags,assetname AS asset_key,assets_digest AS asset_id FROM " + DATA_ITEMS_AND_ASSETS + " WHERE " + selection, params);
     }
 
     public synchronized Cursor getDataItemsByHostAndPath(String packageName, String signatureDigest, String host, String path) {
@@ -98,39 +123,78 @@ public class NodeDatabaseHelper extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        if (oldVersion != VERSION) {
+        if (oldVersion == 9) {
+            createVersion10(db);
+            // nodeinfo keeps the highest seqId per node from now on
+            db.execSQL("INSERT OR REPLACE INTO nodeinfo(node, seqId, lastActivityMs) SELECT sourceNode, MAX(seqId), MAX(timestampMs) FROM dataitems GROUP BY sourceNode;");
+        } else if (oldVersion != VERSION) {
             // TODO: Upgrade not supported, cleaning up
-            db.execSQL("DROP TABLE IF EXISTS appkeys;");
-            db.execSQL("DROP TABLE IF EXISTS dataitems;");
-            db.execSQL("DROP TABLE IF EXISTS assets;");
-            db.execSQL("DROP TABLE IF EXISTS assetrefs;");
-            db.execSQL("DROP TABLE IF EXISTS assetsacls;");
-            db.execSQL("DROP TABLE IF EXISTS nodeinfo;");
-            db.execSQL("DROP VIEW IF EXISTS appKeyDataItems;");
-            db.execSQL("DROP VIEW IF EXISTS appKeyAcls;");
-            db.execSQL("DROP VIEW IF EXISTS dataItemsAndAssets;");
-            db.execSQL("DROP VIEW IF EXISTS assetsReadyStatus;");
-            onCreate(db);
+            recreate(db);
         }
     }
 
-    private static synchronized long getAppKey(SQLiteDatabase db, String packageName, String signatureDigest) {
-        Cursor cursor = db.rawQuery("SELECT _id FROM appkeys WHERE packageName=? AND signatureDigest=?", new String[]{packageName, signatureDigest});
-        if (cursor != null) {
-            try {
-                if (cursor.moveToNext()) {
-                    return cursor.getLong(0);
-                }
-            } finally {
-                cursor.close();
-            }
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Downgrade not supported, cleaning up
+        recreate(db);
+    }
+
+    private void recreate(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS appkeys;");
+        db.execSQL("DROP TABLE IF EXISTS dataitems;");
+        db.execSQL("DROP TABLE IF EXISTS assets;");
+        db.execSQL("DROP TABLE IF EXISTS assetrefs;");
+        db.execSQL("DROP TABLE IF EXISTS assetsacls;");
+        db.execSQL("DROP TABLE IF EXISTS nodeinfo;");
+        db.execSQL("DROP VIEW IF EXISTS appKeyDataItems;");
+        db.execSQL("DROP VIEW IF EXISTS appKeyAcls;");
+        db.execSQL("DROP VIEW IF EXISTS dataItemsAndAssets;");
+        db.execSQL("DROP VIEW IF EXISTS assetsReadyStatus;");
+        onCreate(db);
+    }
+
+    /**
+     * @return the id of the app key or -1 if there is no such app key yet
+     */
+    private synchronized long findAppKey(SQLiteDatabase db, String packageName, String signatureDigest) {
+        if (appKeyStatement == null) {
+            appKeyStatement = db.compileStatement("SELECT _id FROM appkeys WHERE packageName=? AND signatureDigest=?");
+        }
+        appKeyStatement.bindString(1, packageName);
+        appKeyStatement.bindString(2, signatureDigest);
+        try {
+            return appKeyStatement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return -1;
         }
+    }
+
+    private synchronized long getAppKey(SQLiteDatabase db, String packageName, String signatureDigest) {
+        long id = findAppKey(db, packageName, signatureDigest);
+        if (id != -1) return id;
         ContentValues appKey = new ContentValues();
         appKey.put("packageName", packageName);
         appKey.put("signatureDigest", signatureDigest);
         return db.insert("appkeys", null, appKey);
     }
 
+    private void updateNodeInfo(SQLiteDatabase db, DataItemRecord record) {
+        if (record.source == null) return;
+        if (insertNodeInfoStatement == null) {
+            insertNodeInfoStatement = db.compileStatement("INSERT OR IGNORE INTO nodeinfo(node, seqId, lastActivityMs) VALUES (?, ?, ?)");
+            updateNodeInfoStatement = db.compileStatement("UPDATE nodeinfo SET seqId = MAX(IFNULL(seqId, 0), ?), lastActivityMs = ? WHERE node = ?");
+        }
+        insertNodeInfoStatement.bindString(1, record.source);
+        insertNodeInfoStatement.bindLong(2, record.seqId);
+        insertNodeInfoStatement.bindLong(3, record.lastModified);
+        if (insertNodeInfoStatement.executeInsert() == -1) {
+            updateNodeInfoStatement.bindLong(1, record.seqId);
+            updateNodeInfoStatement.bindLong(2, record.lastModified);
+            updateNodeInfoStatement.bindString(3, record.source);
+            updateNodeInfoStatement.executeUpdateDelete();
+        }
+    }
+
     public synchronized void putRecord(DataItemRecord record) {
         SQLiteDatabase db = getWritableDatabase();
         db.beginTransaction();
@@ -145,6 +209,7 @@ public class NodeDatabaseHelper extends SQLiteOpenHelper {
                 // insert
                 key = insertRecord(db, record);
             }
+            updateNodeInfo(db, record);
             if (record.assetsAreReady) {
                 ContentValues update = new ContentValues();
                 update.put("assetsPresent", 1);
@@ -163,7 +228,7 @@ public class NodeDatabaseHelper extends SQLiteOpenHelper {
         finishRecord(db, key, record);
     }
 
-    private static String insertRecord(SQLiteDatabase db, DataItemRecord record) {
+    private String insertRecord(SQLiteDatabase db, DataItemRecord record) {
         ContentValues contentValues = record.toContentValues();
         contentValues.put("appkeys_id", getAppKey(db, record.packageName, record.signatureDigest));
         contentValues.put("host", record.dataItem.host);
@@ -192,26 +257,62 @@ public class NodeDatabaseHelper extends SQLiteOpenHelper {
         return key;
     }
 
-    private static Cursor getDataItemsByHostAndPath(SQLiteDatabase db, String packageName, String signatureDigest, String host, String path) {
+    /**
+     * Like {@link #getDataItemsForDataHolderByHostAndPath}, package name and signature digest are selected as constants
+     * after resolving the app key, so the columns match {@link #GDIBHAP_FIELDS}.
+     */
+    private Cursor getDataItemsByHostAndPath(SQLiteDatabase db, String packageName, String signatureDigest, String host, String path) {
+        String appKey = Long.toString(findAppKey(db, packageName, signatureDigest));
         String[] params;
         String selection;
         if (path == null) {
-            params = new String[]{packageName, signatureDigest};
-            selection = "packageName =? AND signatureDigest =?";
+            params = new String[]{packageName, signatureDigest, appKey};
+            selection = "appkeys_id =?";
         } else if (host == null) {
-            params = new String[]{packageName, signatureDigest, path};
-            selection = "packageName =? AND signatureDigest =? AND path =?";
+            params = new String[]{packageName, signatureDigest, appKey, path};
+            selection = "appkeys_id =? AND path =?";
         } else {
-            params = new String[]{packageName, signatureDigest, host, path};
-            selection = "packageName =? AND signatureDigest =? AND host =? AND path =?";
+            params = new String[]{packageName, signatureDigest, appKey, host, path};
+            selection = "appkeys_id =? AND host =? AND path =?";
         }
         selection += " AND deleted=0";
-        return db.query("dataItemsAndAssets", GDIBHAP_FIELDS, selection, params, null, null, "packageName, signatureDigest, host, path");
+        return db.rawQuery("SELECT dataitems._id AS dataitems_id, ? AS packageName, ? AS signatureDigest, host, path, seqId, deleted, sourceNode, data, timestampMs, assetsPresent, assetname, assets_digest, v1SourceNode, v1SeqId FROM " + DATA_ITEMS_AND_ASSETS + " WHERE " + selection + " ORDER BY host, path", params);
     }
 
-    public Cursor getModifiedDataItems(final String nodeId, final long seqId, final boolean excludeDeleted) {
+    /**
+     * Returns up to {@code limit} records of the node modified after the given seqId, ordered by seqId.
+     * <p>
+     * Data items are queried without joining assets, assets are only added for the items that have some.
+     */
+    public synchronized List<DataItemRecord> getModifiedDataItems(final String nodeId, final long seqId, final boolean excludeDeleted, final int limit) {
+        SQLiteDatabase db = getReadableDatabase();
         String selection = "sourceNode =? AND seqId >?" + (excludeDeleted ? " AND deleted =0" : "");
-        return getReadableDatabase().query("dataItemsAndAssets", GDIBHAP_FIELDS, selection, new String[]{nodeId, Long.toString(seqId)}, null, null, "seqId", null);
+        List<DataItemRecord> records = new ArrayList<DataItemRecord>();
+        Map<Long, DataItemRecord> recordsById = new HashMap<Long, DataItemRecord>();
+        Cursor cursor = db.rawQuery("SELECT dataitems_id, packageName, signatureDigest, host, path, seqId, deleted, sourceNode, data, timestampMs, assetsPresent, NULL AS assetname, NULL AS assets_digest, v1SourceNode, v1SeqId FROM appKeyDataItems WHERE " + selection + " ORDER BY seqId LIMIT " + limit, new String[]{nodeId, Long.toString(seqId)});
+        try {
+            while (cursor.moveToNext()) {
+                DataItemRecord record = DataItemRecord.fromCursor(cursor);
+                records.add(record);
+                recordsById.put(cursor.getLong(0), record);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (records.isEmpty()) return records;
+        long lastSeqId = records.get(records.size() - 1).seqId;
+        Cursor assets = db.rawQuery("SELECT assetrefs.dataitems_id, assetname, assets_digest FROM dataitems, assetrefs WHERE dataitems._id = assetrefs.dataitems_id AND sourceNode =? AND seqId >? AND seqId <=?", new String[]{nodeId, Long.toString(seqId), Long.toString(lastSeqId)});
+        try {
+            while (assets.moveToNext()) {
+                DataItemRecord record = recordsById.get(assets.getLong(0));
+                if (record != null) {
+                    record.dataItem.addAsset(assets.getString(1), Asset.createFromRef(assets.getString(2)));
+                }
+            }
+        } finally {
+            assets.close();
+        }
+        return records;
     }
 
     public synchronized List<DataItemRecord> deleteDataItems(String packageName, String signatureDigest, String host, String path) {
@@ -227,6 +328,7 @@ public class NodeDatabaseHelper extends SQLiteOpenHelper {
             record.seqId = clockworkNodePreferences.getNextSeqId();
             record.v1SeqId = record.seqId;
             updateRecord(db, cursor.getString(0), record);
+            updateNodeInfo(db, record);
             updated.add(record);
         }
         db.setTransactionSuccessful();
@@ -240,7 +342,7 @@ public class NodeDatabaseHelper extends SQLiteOpenHelper {
     }
 
     private long getCurrentSeqId(SQLiteDatabase db, String sourceNode) {
-        Cursor cursor = db.query("dataItemsAndAssets", new String[]{"seqId"}, "sourceNode=?", new String[]{sourceNode}, null, null, "seqId DESC", "1");
+        Cursor cursor = db.query("nodeinfo", new String[]{"seqId"}, "node=? AND seqId NOT NULL", new String[]{sourceNode}, null, null, null);
         long res = 1;
         if (cursor != null) {
             if (cursor.moveToFirst()) {
@@ -294,4 +396,19 @@ public class NodeDatabaseHelper extends SQLiteOpenHelper {
         }
         status.close();
     }
+
+    @Override
+    public synchronized void close() {
+        if (appKeyStatement != null) {
+            appKeyStatement.close();
+            appKeyStatement = null;
+        }
+        if (insertNodeInfoStatement != null) {
+            insertNodeInfoStatement.close();
+            insertNodeInfoStatement = null;
+            updateNodeInfoStatement.close();
+            updateNodeInfoStatement = null;
+        }
+        super.close();
+    }
 }
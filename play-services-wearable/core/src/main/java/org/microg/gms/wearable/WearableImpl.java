@@ -25,7 +25,6 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.RemoteException;
 import android.text.TextUtils;
-import android.util.Base64;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
@@ -41,7 +40,6 @@ import com.google.android.gms.wearable.internal.PutDataRequest;
 
 import org.microg.gms.common.PackageUtils;
 import org.microg.gms.common.RemoteListenerProxy;
-import org.microg.gms.common.Utils;
 import org.microg.wearable.SocketConnectionThread;
 import org.microg.wearable.WearableConnection;
 import org.microg.wearable.proto.AckAsset;
@@ -49,7 +47,6 @@ import org.microg.wearable.proto.AppKey;
 import org.microg.wearable.proto.AppKeys;
 import org.microg.wearable.proto.Connect;
 import org.microg.wearable.proto.FetchAsset;
-import org.microg.wearable.proto.FilePiece;
 import org.microg.wearable.proto.Request;
 import org.microg.wearable.proto.RootMessage;
 import org.microg.wearable.proto.SetAsset;
@@ -57,10 +54,7 @@ import org.microg.wearable.proto.SetDataItem;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -78,10 +72,12 @@ public class WearableImpl {
     private static final String TAG = "GmsWear";
 
     private static final int WEAR_TCP_PORT = 5601;
+    private static final int SYNC_BATCH_SIZE = 100;
 
     private final Context context;
     private final NodeDatabaseHelper nodeDatabase;
     private final ConfigurationDatabaseHelper configDatabase;
+    private final AssetStore assetStore;
     private final Map<String, List<ListenerInfo>> listeners = new HashMap<String, List<ListenerInfo>>();
     private final Set<Node> connectedNodes = new HashSet<Node>();
     private final Map<String, WearableConnection> activeConnections = new HashMap<String, WearableConnection>();
@@ -97,6 +93,7 @@ public class WearableImpl {
         this.context = context;
         this.nodeDatabase = nodeDatabase;
         this.configDatabase = configDatabase;
+        this.assetStore = new AssetStore(context);
         this.clockworkNodePreferences = new ClockworkNodePreferences(context);
         this.rpcHelper = new RpcHelper(context);
         new Thread(() -> {
@@ -141,57 +138,23 @@ public class WearableImpl {
     }
 
     private Asset prepareAsset(String packageName, Asset asset) {
-        if (asset.getFd() != null && asset.data == null) {
-            try {
-                asset.data = Utils.readStreamToEnd(new FileInputStream(asset.getFd().getFileDescriptor()));
-            } catch (IOException e) {
-                Log.w(TAG, e);
-            }
-        }
+        String digest = null;
         if (asset.data != null) {
-            String digest = calculateDigest(asset.data);
-            File assetFile = createAssetFile(digest);
-            boolean success = assetFile.exists();
-            if (!success) {
-                File tmpFile = new File(assetFile.getParent(), assetFile.getName() + ".tmp");
-
-                try {
-                    FileOutputStream stream = new FileOutputStream(tmpFile);
-                    stream.write(asset.data);
-                    stream.close();
-                    success = tmpFile.renameTo(assetFile);
-                } catch (IOException e) {
-                    Log.w(TAG, e);
-                }
-            }
-            if (success) {
-                Log.d(TAG, "Successfully created asset file " + assetFile);
-                return Asset.createFromRef(digest);
-            } else {
-                Log.w(TAG, "Failed creating asset file " + assetFile);
-            }
+            digest = assetStore.store(asset.data);
+        } else if (asset.getFd() != null) {
+            digest = assetStore.store(new FileInputStream(asset.getFd().getFileDescriptor()));
+        }
+        if (digest != null) {
+            Log.d(TAG, "Successfully created asset file " + createAssetFile(digest));
+            return Asset.createFromRef(digest);
+        } else if (asset.data != null || asset.getFd() != null) {
+            Log.w(TAG, "Failed creating asset file");
         }
         return null;
     }
 
     public File createAssetFile(String digest) {
-        File dir = new File(new File(context.getFilesDir(), "assets"), digest.substring(digest.length() - 2));
-        dir.mkdirs();
-        return new File(dir, digest + ".asset");
-    }
-
-    private File createAssetReceiveTempFile(String name) {
-        File dir = new File(context.getFilesDir(), "piece");
-        dir.mkdirs();
-        return new File(dir, name);
-    }
-
-    private String calculateDigest(byte[] data) {
-        try {
-            return Base64.encodeToString(MessageDigest.getInstance("SHA1").digest(data), Base64.NO_WRAP | Base64.NO_PADDING | Base64.URL_SAFE);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        return assetStore.getAssetFile(digest);
     }
 
     public synchronized ConnectionConfiguration[] getConfigurations() {
@@ -235,19 +198,41 @@ public class WearableImpl {
         return context;
     }
 
-    public void syncToPeer(String peerNodeId, String nodeId, long seqId) {
+    /**
+     * Syncs on the network thread, so that the connection keeps reading incoming messages while syncing. Each batch of
+     * records is synced in its own task, so that API calls are not delayed until the whole sync is done.
+     */
+    public void postSyncToPeer(String peerNodeId, String nodeId, long seqId) {
+        try {
+            networkHandlerLock.await();
+        } catch (InterruptedException e) {
+            Log.w(TAG, e);
+            return;
+        }
         Log.d(TAG, "-- Start syncing over to " + peerNodeId + ", nodeId " + nodeId + " starting with seqId " + seqId);
-        Cursor cursor = nodeDatabase.getModifiedDataItems(nodeId, seqId, true);
-        if (cursor != null) {
-            while (cursor.moveToNext()) {
-                if (!syncRecordToPeer(peerNodeId, DataItemRecord.fromCursor(cursor))) break;
+        networkHandler.post(() -> syncBatchToPeer(peerNodeId, nodeId, seqId, seqId, 0));
+    }
+
+    private void syncBatchToPeer(String peerNodeId, String nodeId, long seqId, long lastSeqId, int count) {
+        // Records are read in batches, so a large sync neither holds a cursor over all records nor loads them at once
+        List<DataItemRecord> records = nodeDatabase.getModifiedDataItems(nodeId, lastSeqId, true, SYNC_BATCH_SIZE);
+        for (DataItemRecord record : records) {
+            if (!syncRecordToPeer(peerNodeId, record)) {
+                Log.d(TAG, "-- Aborted syncing over to " + peerNodeId + ", nodeId " + nodeId + " after " + count + " records at seqId " + lastSeqId);
+                return;
             }
-            cursor.close();
+            lastSeqId = record.seqId;
+            count++;
+        }
+        if (records.size() < SYNC_BATCH_SIZE) {
+            Log.d(TAG, "-- Done syncing over to " + peerNodeId + ", nodeId " + nodeId + " starting with seqId " + seqId + ", synced " + count + " records");
+            return;
         }
-        Log.d(TAG, "-- Done syncing over to " + peerNodeId + ", nodeId " + nodeId + " starting with seqId " + seqId);
+        long nextSeqId = lastSeqId;
+        int nextCount = count;
+        networkHandler.post(() -> syncBatchToPeer(peerNodeId, nodeId, seqId, nextSeqId, nextCount));
     }
 
-
     void syncRecordToAll(DataItemRecord record) {
         for (String nodeId : new ArrayList<String>(activeConnections.keySet())) {
             syncRecordToPeer(nodeId, record);
@@ -281,20 +266,11 @@ public class WearableImpl {
                 .digest(asset.getDigest())
                 .appkeys(new AppKeys(Collections.singletonList(new AppKey(record.packageName, record.signatureDigest))))
                 .build()).hasAsset(true).build();
-        activeConnections.get(nodeId).writeMessage(announceMessage);
+        WearableConnection connection = activeConnections.get(nodeId);
+        connection.writeMessage(announceMessage);
         File assetFile = createAssetFile(asset.getDigest());
-        String fileName = calculateDigest(announceMessage.encode());
-        FileInputStream fis = new FileInputStream(assetFile);
-        byte[] arr = new byte[12215];
-        ByteString lastPiece = null;
-        int c = 0;
-        while ((c = fis.read(arr)) > 0) {
-            if (lastPiece != null) {
-                activeConnections.get(nodeId).writeMessage(new RootMessage.Builder().filePiece(new FilePiece(fileName, false, lastPiece, null)).build());
-            }
-            lastPiece = ByteString.of(arr, 0, c);
-        }
-        activeConnections.get(nodeId).writeMessage(new RootMessage.Builder().filePiece(new FilePiece(fileName, true, lastPiece, asset.getDigest())).build());
+        String fileName = AssetStore.calculateDigest(announceMessage.encode());
+        AssetStore.writePieces(assetFile, fileName, asset.getDigest(), piece -> connection.writeMessage(new RootMessage.Builder().filePiece(piece).build()));
     }
 
     public void addAssetToDatabase(Asset asset, List<AppKey> appKeys) {
@@ -308,31 +284,13 @@ public class WearableImpl {
         return nodeDatabase.getCurrentSeqId(nodeId);
     }
 
-    public void handleFilePiece(WearableConnection connection, String fileName, byte[] bytes, String finalPieceDigest) {
-        File file = createAssetReceiveTempFile(fileName);
-        try {
-            FileOutputStream fos = new FileOutputStream(file, true);
-            fos.write(bytes);
-            fos.close();
-        } catch (IOException e) {
-            Log.w(TAG, e);
-        }
-        if (finalPieceDigest != null) {
-            // This is a final piece. If digest matches we're so happy!
+    public void handleFilePiece(WearableConnection connection, String nodeId, String fileName, ByteString piece, String finalPieceDigest) {
+        if (assetStore.appendPiece(nodeId, fileName, piece, finalPieceDigest)) {
+            nodeDatabase.markAssetAsPresent(finalPieceDigest);
             try {
-                String digest = calculateDigest(Utils.readStreamToEnd(new FileInputStream(file)));
-                if (digest.equals(finalPieceDigest)) {
-                    if (file.renameTo(createAssetFile(digest))) {
-                        nodeDatabase.markAssetAsPresent(digest);
-                        connection.writeMessage(new RootMessage.Builder().ackAsset(new AckAsset(digest)).build());
-                    } else {
-                        Log.w(TAG, "Could not rename to target file name. delete=" + file.delete());
-                    }
-                } else {
-                    Log.w(TAG, "Received digest does not match. delete=" + file.delete());
-                }
+                connection.writeMessage(new RootMessage.Builder().ackAsset(new AckAsset(finalPieceDigest)).build());
             } catch (IOException e) {
-                Log.w(TAG, "Failed working with temp file. delete=" + file.delete(), e);
+                Log.w(TAG, e);
             }
         }
     }
@@ -381,6 +339,7 @@ public class WearableImpl {
         }
         Log.d(TAG, "Removing connection from list of open connections: " + connection);
         activeConnections.remove(connect.id);
+        assetStore.closeTransfers(connect.id);
         onPeerDisconnected(new NodeParcelable(connect.id, connect.name));
     }
 
@@ -586,6 +545,7 @@ public class WearableImpl {
             sct = null;
         }
         activeConnections.remove(nodeId);
+        assetStore.closeTransfers(nodeId);
         for (ConnectionConfiguration config : getConfigurations()) {
             if (nodeId.equals(config.nodeId) || nodeId.equals(config.peerNodeId)) {
                 config.connected = false;
@@ -0,0 +1,154 @@
+/*
+ * SPDX-FileCopyrightText: 2024 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.wearable;
+
+import junit.framework.TestCase;
+
+import org.microg.wearable.proto.FilePiece;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sends assets from one store to another through file pieces, like two peers would.
+ */
+public class AssetStoreTest extends TestCase {
+    private static final String NODE = "node-a";
+    private static final String OTHER_NODE = "node-b";
+
+    private final List<File> directories = new ArrayList<>();
+
+    @Override
+    protected void tearDown() {
+        for (File directory : directories) {
+            delete(directory);
+        }
+    }
+
+    private File newDirectory() throws IOException {
+        File directory = Files.createTempDirectory("assets").toFile();
+        directories.add(directory);
+        return directory;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private File writeFile(byte[] data) throws IOException {
+        File file = new File(newDirectory(), "source");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+
+    private static byte[] randomData(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private List<FilePiece> split(byte[] data, String fileName) throws IOException {
+        List<FilePiece> pieces = new ArrayList<>();
+        AssetStore.writePieces(writeFile(data), fileName, AssetStore.calculateDigest(data), pieces::add);
+        return pieces;
+    }
+
+    private static boolean receive(AssetStore store, String nodeId, FilePiece piece) {
+        return store.appendPiece(nodeId, piece.fileName, piece.piece, piece.finalPiece ? piece.digest : null);
+    }
+
+    private static byte[] read(File file) throws IOException {
+        return Files.readAllBytes(file.toPath());
+    }
+
+    public void testLoopback() throws IOException {
+        AssetStore receiver = new AssetStore(newDirectory());
+        for (int size : new int[]{0, 1, AssetStore.PIECE_SIZE - 1, AssetStore.PIECE_SIZE, AssetStore.PIECE_SIZE + 1, 100000}) {
+            byte[] data = randomData(size);
+            String digest = AssetStore.calculateDigest(data);
+            List<FilePiece> pieces = split(data, "file" + size);
+
+            assertEquals(Math.max(1, (size + AssetStore.PIECE_SIZE - 1) / AssetStore.PIECE_SIZE), pieces.size());
+            for (int i = 0; i < pieces.size(); i++) {
+                FilePiece piece = pieces.get(i);
+                boolean last = i == pieces.size() - 1;
+                assertTrue(piece.piece.size() <= AssetStore.PIECE_SIZE);
+                assertEquals(last, (boolean) piece.finalPiece);
+                assertEquals(last ? digest : null, piece.digest);
+                assertEquals(last, receive(receiver, NODE, piece));
+            }
+            assertTrue(Arrays.equals(data, read(receiver.getAssetFile(digest))));
+        }
+    }
+
+    public void testStoreMatchesPieceDigest() throws IOException {
+        AssetStore store = new AssetStore(newDirectory());
+        byte[] data = randomData(50000);
+        String digest = store.store(data);
+        assertEquals(AssetStore.calculateDigest(data), digest);
+        assertEquals(digest, store.store(new java.io.ByteArrayInputStream(data)));
+        assertTrue(Arrays.equals(data, read(store.getAssetFile(digest))));
+    }
+
+    public void testDigestEncoding() {
+        // SHA-1 of "abc", URL safe Base64 without padding
+        assertEquals("qZk-NkcGgWq6PiVxeFDCbJzQ2J0", AssetStore.calculateDigest("abc".getBytes()));
+    }
+
+    public void testRestartAfterDisconnect() throws IOException {
+        AssetStore receiver = new AssetStore(newDirectory());
+        byte[] data = randomData(5 * AssetStore.PIECE_SIZE);
+        List<FilePiece> pieces = split(data, "file");
+        for (int i = 0; i < 3; i++) {
+            assertFalse(receive(receiver, NODE, pieces.get(i)));
+        }
+        receiver.closeTransfers(NODE);
+
+        // Pieces carry no offset, the peer sends the asset from the start again
+        for (int i = 0; i < pieces.size(); i++) {
+            assertEquals(i == pieces.size() - 1, receive(receiver, NODE, pieces.get(i)));
+        }
+        assertTrue(Arrays.equals(data, read(receiver.getAssetFile(AssetStore.calculateDigest(data)))));
+    }
+
+    public void testDisconnectOnlyAffectsNode() throws IOException {
+        AssetStore receiver = new AssetStore(newDirectory());
+        byte[] data = randomData(3 * AssetStore.PIECE_SIZE);
+        List<FilePiece> pieces = split(data, "file");
+        receive(receiver, NODE, pieces.get(0));
+        receive(receiver, OTHER_NODE, pieces.get(0));
+        receiver.closeTransfers(NODE);
+
+        assertFalse(receive(receiver, OTHER_NODE, pieces.get(1)));
+        assertTrue(receive(receiver, OTHER_NODE, pieces.get(2)));
+        assertTrue(Arrays.equals(data, read(receiver.getAssetFile(AssetStore.calculateDigest(data)))));
+    }
+
+    public void testRejectsDigestMismatch() throws IOException {
+        AssetStore receiver = new AssetStore(newDirectory());
+        byte[] data = randomData(2 * AssetStore.PIECE_SIZE);
+        List<FilePiece> pieces = split(data, "file");
+        assertFalse(receive(receiver, NODE, pieces.get(0)));
+        String wrongDigest = AssetStore.calculateDigest(new byte[1]);
+        assertFalse(receiver.appendPiece(NODE, "file", pieces.get(1).piece, wrongDigest));
+        assertFalse(receiver.getAssetFile(wrongDigest).exists());
+        assertFalse(receiver.getAssetFile(AssetStore.calculateDigest(data)).exists());
+    }
+}